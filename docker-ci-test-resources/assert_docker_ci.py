@@ -14,7 +14,9 @@ installations_dirs = os.listdir(user_dir_path)
 assert len(installations_dirs) == 1
 installation_dir = installations_dirs[0]
 installation_dir_path = os.path.join(user_dir_path, installation_dir)
-reports = os.listdir(installation_dir_path)
+# The sample index journal and any interrupted rewrite of it live next to the reports
+reports = [entry for entry in os.listdir(installation_dir_path)
+           if entry != 'tix-index.journal' and not entry.endswith('.tmp')]
 assert len(reports) == 1
 report = reports[0]
 report_path = os.path.join(installation_dir_path, report)
@@ -0,0 +1,107 @@
+package com.github.tix_measurements.time.condenser.store;
+
+import java.io.IOException;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.tix_measurements.time.condenser.PacketGenerator;
+import com.github.tix_measurements.time.condenser.sender.SubmittablePacketSet;
+import com.github.tix_measurements.time.condenser.utils.jackson.TixPacketSerDe;
+import com.github.tix_measurements.time.core.data.TixDataPacket;
+import com.github.tix_measurements.time.core.util.TixCoreUtils;
+
+/**
+ * Cost of extracting the first packet set of an installation with a backlog of {@code depth} stored packets. Samples
+ * live in a map, so what is measured is the extraction itself rather than any storage.
+ *
+ * Extracting changes the installation, which is therefore rebuilt before every invocation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CheckAndExtractBenchmark {
+	@Param({"20", "200", "2000"})
+	public int depth;
+
+	private List<TixDataPacket> backlog;
+	private MapInstallationMeasurements measurements;
+
+	@Setup(Level.Trial)
+	public void generateBacklog() {
+		KeyPair keyPair = TixCoreUtils.NEW_KEY_PAIR.get();
+		backlog = new ArrayList<>(depth);
+		for (int i = 0; i < depth; i++) {
+			backlog.add(PacketGenerator.defaults()
+					.withKeyPair(keyPair)
+					.withInitialTimestamp(PacketGenerator.DEFAULT_FIRST_UNIX_TIMESTAMP + 60 * i)
+					.build());
+		}
+	}
+
+	@Setup(Level.Invocation)
+	public void storeBacklog() throws IOException {
+		measurements = new MapInstallationMeasurements();
+		for (TixDataPacket packet: backlog) {
+			measurements.append(packet);
+		}
+	}
+
+	@Benchmark
+	public Optional<SubmittablePacketSet> checkAndExtract() throws IOException {
+		return measurements.checkAndExtract();
+	}
+
+	private static class MapInstallationMeasurements extends AbstractInstallationMeasurements {
+		private final Map<Long, TixDataPacket> packets = new HashMap<>();
+
+		@Override
+		public long getUserId() {
+			return 1L;
+		}
+
+		@Override
+		public long getInstallationId() {
+			return 1L;
+		}
+
+		@Override
+		protected boolean appendSample(long timestamp, TixDataPacket packet) {
+			return packets.putIfAbsent(timestamp, packet) == null;
+		}
+
+		@Override
+		protected TixDataPacket readSample(long timestamp) throws IOException {
+			TixDataPacket packet = packets.get(timestamp);
+			if (packet == null) {
+				throw new IOException("No sample at " + timestamp);
+			}
+			return packet;
+		}
+
+		@Override
+		protected void deleteSample(long timestamp) {
+			packets.remove(timestamp);
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package com.github.tix_measurements.time.condenser.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.tix_measurements.time.condenser.PacketGenerator;
+import com.github.tix_measurements.time.condenser.utils.jackson.TixPacketSerDe;
+import com.github.tix_measurements.time.core.data.TixDataPacket;
+import com.github.tix_measurements.time.core.util.TixCoreUtils;
+
+/**
+ * Costs of the report files of an installation in a temporary directory already holding {@link #STORED} packets, in
+ * each report format. Appending is measured along with deleting the new packet again, which keeps the directory the
+ * same size throughout.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilesystemInstallationMeasurementsBenchmark {
+	private static final int STORED = 100;
+	/** Packets in a submitted set, enough to cover the reports one needs */
+	private static final int PACKETS_PER_SET = 19;
+
+	@Param({"JSON", "BINARY"})
+	public ReportFormat reportFormat;
+
+	private Path reportsPath;
+	private FilesystemInstallationMeasurements measurements;
+	private TixDataPacket stored;
+	private TixDataPacket unstored;
+	private long unstoredTimestamp;
+	private long setFrom;
+	private long setTo;
+
+	@Setup
+	public void setup() throws IOException {
+		KeyPair keyPair = TixCoreUtils.NEW_KEY_PAIR.get();
+		reportsPath = Files.createTempDirectory("tix-benchmark");
+		measurements = new FilesystemInstallationMeasurements(reportsPath, 1L, 1L, reportFormat);
+		for (int i = 0; i < STORED; i++) {
+			measurements.append(packet(keyPair, i));
+		}
+		stored = packet(keyPair, 0);
+		unstored = packet(keyPair, STORED);
+		unstoredTimestamp = TixPacketSerDe.getFirstReportTimestamp(unstored);
+		setFrom = measurements.sampleStartTimes().timestamp(0);
+		setTo = measurements.sampleStartTimes().timestamp(PACKETS_PER_SET - 1);
+	}
+
+	@TearDown
+	public void teardown() throws IOException {
+		try (Stream<Path> files = Files.walk(reportsPath)) {
+			files.sorted(Comparator.reverseOrder())
+				.map(Path::toFile)
+				.forEach(File::delete);
+		}
+	}
+
+	@Benchmark
+	public void appendAndDelete() throws IOException {
+		measurements.append(unstored);
+		measurements.delete(unstoredTimestamp, unstoredTimestamp);
+	}
+
+	@Benchmark
+	public void appendDuplicate() throws IOException {
+		measurements.append(stored);
+	}
+
+	@Benchmark
+	public List<TixDataPacket> getSet() throws IOException {
+		return measurements.get(setFrom, setTo);
+	}
+
+	private static TixDataPacket packet(KeyPair keyPair, int minute) {
+		return PacketGenerator.defaults()
+				.withKeyPair(keyPair)
+				.withInitialTimestamp(PacketGenerator.DEFAULT_FIRST_UNIX_TIMESTAMP + 60 * minute)
+				.build();
+	}
+}
@@ -0,0 +1,75 @@
+package com.github.tix_measurements.time.condenser.utils.jackson;
+
+import java.io.IOException;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.tix_measurements.time.condenser.PacketGenerator;
+import com.github.tix_measurements.time.core.data.TixDataPacket;
+import com.github.tix_measurements.time.core.util.TixCoreUtils;
+import com.google.common.io.ByteStreams;
+
+/** Costs of reading and writing packets as received from clients, one minute of reports each */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TixPacketSerDeBenchmark {
+	/** Packets in a submitted set, enough to cover the reports one needs */
+	private static final int PACKETS_PER_SET = 19;
+
+	private TixPacketSerDe serDe;
+	private TixDataPacket packet;
+	private byte[] serializedPacket;
+	private List<TixDataPacket> packetSet;
+
+	@Setup
+	public void setup() throws IOException {
+		KeyPair keyPair = TixCoreUtils.NEW_KEY_PAIR.get();
+		serDe = TixPacketSerDe.shared();
+		packet = PacketGenerator.defaults().withKeyPair(keyPair).build();
+		serializedPacket = serDe.serialize(packet);
+		packetSet = new ArrayList<>(PACKETS_PER_SET);
+		for (int i = 0; i < PACKETS_PER_SET; i++) {
+			packetSet.add(PacketGenerator.defaults()
+					.withKeyPair(keyPair)
+					.withInitialTimestamp(PacketGenerator.DEFAULT_FIRST_UNIX_TIMESTAMP + 60 * i)
+					.build());
+		}
+	}
+
+	@Benchmark
+	public byte[] serialize() throws IOException {
+		return serDe.serialize(packet);
+	}
+
+	@Benchmark
+	public TixDataPacket deserialize() throws IOException {
+		return serDe.deserialize(serializedPacket);
+	}
+
+	@Benchmark
+	public byte[] serializeList() throws IOException {
+		return serDe.serializeList(packetSet);
+	}
+
+	@Benchmark
+	public void serializeListToStream() throws IOException {
+		serDe.serializeList(packetSet, ByteStreams.nullOutputStream());
+	}
+}
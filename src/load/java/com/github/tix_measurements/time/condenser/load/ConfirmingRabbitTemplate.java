@@ -0,0 +1,52 @@
+package com.github.tix_measurements.time.condenser.load;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.support.CorrelationData;
+
+/**
+ * Stand-in for the sending side of the broker: counts what is published and confirms every message from a thread of
+ * its own, as the connection thread would, without a connection behind it.
+ */
+class ConfirmingRabbitTemplate extends RabbitTemplate {
+	private final ExecutorService confirms = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "local-broker-confirms");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final LongAdder messages = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+	private volatile ConfirmCallback confirmCallback;
+
+	@Override
+	public void setConfirmCallback(ConfirmCallback confirmCallback) {
+		super.setConfirmCallback(confirmCallback);
+		this.confirmCallback = confirmCallback;
+	}
+
+	@Override
+	public void convertAndSend(String exchange, String routingKey, Object object, CorrelationData correlationData) {
+		messages.increment();
+		bytes.add(((Message) object).getBody().length);
+		ConfirmCallback callback = confirmCallback;
+		if (callback != null) {
+			confirms.execute(() -> callback.confirm(correlationData, true, null));
+		}
+	}
+
+	long getMessages() {
+		return messages.sum();
+	}
+
+	long getBytes() {
+		return bytes.sum();
+	}
+
+	void close() {
+		confirms.shutdownNow();
+	}
+}
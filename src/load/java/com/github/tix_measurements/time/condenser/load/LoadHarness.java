@@ -0,0 +1,331 @@
+package com.github.tix_measurements.time.condenser.load;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.github.tix_measurements.time.condenser.PacketGenerator;
+import com.github.tix_measurements.time.condenser.handlers.BacklogDrain;
+import com.github.tix_measurements.time.condenser.handlers.RabbitReceiver;
+import com.github.tix_measurements.time.condenser.handlers.TixApiClient;
+import com.github.tix_measurements.time.condenser.handlers.TixPacketValidator;
+import com.github.tix_measurements.time.condenser.handlers.TixReceiver;
+import com.github.tix_measurements.time.condenser.handlers.TixSignatureVerifier;
+import com.github.tix_measurements.time.condenser.metrics.LatencyHistogram;
+import com.github.tix_measurements.time.condenser.sender.PayloadCompression;
+import com.github.tix_measurements.time.condenser.sender.RabbitSubmitter;
+import com.github.tix_measurements.time.condenser.store.AbstractInstallationMeasurements;
+import com.github.tix_measurements.time.condenser.store.MeasurementStore;
+import com.github.tix_measurements.time.condenser.store.ReportFormat;
+import com.github.tix_measurements.time.condenser.store.ReportsBackend;
+import com.github.tix_measurements.time.condenser.store.SegmentLogInstallationMeasurements;
+import com.github.tix_measurements.time.condenser.utils.jackson.TixPacketSerDe;
+import com.github.tix_measurements.time.core.data.TixDataPacket;
+import com.github.tix_measurements.time.core.util.TixCoreUtils;
+
+/**
+ * Drives the real {@link RabbitReceiver}, {@link TixReceiver}, {@link MeasurementStore} and {@link RabbitSubmitter}
+ * chain with simulated installations, standing in for RabbitMQ with a {@link LocalBroker} and for the TiX API with a
+ * {@link StubTixApi}.
+ *
+ * Every installation sends one packet per simulated minute, with simulated time running {@code speedup} times faster
+ * than the wall clock. Now and then an installation goes offline for {@code burst-minutes} and sends everything it
+ * missed at once on reconnecting, or changes its public address. Options are given as {@code key=value} arguments,
+ * see {@link #DEFAULTS}; a long {@code duration-seconds} makes a soak test.
+ */
+public class LoadHarness {
+	private static final Map<String, String> DEFAULTS = new HashMap<>();
+	static {
+		DEFAULTS.put("installations", "100");
+		DEFAULTS.put("installations-per-user", "2");
+		DEFAULTS.put("duration-seconds", "120");
+		DEFAULTS.put("report-seconds", "10");
+		DEFAULTS.put("speedup", "60");
+		DEFAULTS.put("burst-probability", "0.002");
+		DEFAULTS.put("burst-minutes", "30");
+		DEFAULTS.put("ip-change-probability", "0.0005");
+		DEFAULTS.put("generator-threads", Integer.toString(Runtime.getRuntime().availableProcessors()));
+		DEFAULTS.put("consumers", "4");
+		DEFAULTS.put("prefetch", "400");
+		DEFAULTS.put("batch-size", Integer.toString(RabbitReceiver.DEFAULT_BATCH_SIZE));
+		DEFAULTS.put("batch-millis", Long.toString(RabbitReceiver.DEFAULT_BATCH_MILLIS));
+		DEFAULTS.put("max-in-flight", Integer.toString(RabbitReceiver.DEFAULT_MAX_IN_FLIGHT));
+		DEFAULTS.put("resume-in-flight", Integer.toString(RabbitReceiver.DEFAULT_RESUME_IN_FLIGHT));
+		DEFAULTS.put("store-threads", Integer.toString(TixReceiver.DEFAULT_STORE_THREADS));
+		DEFAULTS.put("store-queue-capacity", Integer.toString(TixReceiver.DEFAULT_STORE_QUEUE_CAPACITY));
+		DEFAULTS.put("backend", ReportsBackend.FILESYSTEM.getConfigName());
+		DEFAULTS.put("format", ReportFormat.JSON.getConfigName());
+		DEFAULTS.put("compression", PayloadCompression.NONE.getConfigName());
+		DEFAULTS.put("reports-path", "");
+		DEFAULTS.put("keep-reports", "false");
+	}
+
+	private final Map<String, String> options;
+	private final Path reportsPath;
+	private final StubTixApi api;
+	private final ConfirmingRabbitTemplate rabbitTemplate;
+	private final MeasurementStore store;
+	private final TixSignatureVerifier verifier;
+	private final TixPacketValidator validator;
+	private final RabbitSubmitter submitter;
+	private final BacklogDrain backlogDrain;
+	private final TixReceiver tixReceiver;
+	private final RabbitReceiver receiver;
+	private final LocalBroker broker;
+	private final List<SimulatedInstallation> installations;
+	private final LongAdder bursts = new LongAdder();
+	private final LongAdder addressChanges = new LongAdder();
+	private final LongAdder generationFailures = new LongAdder();
+	private long peakHeapBytes;
+
+	private LoadHarness(Map<String, String> options) throws IOException {
+		this.options = options;
+		this.reportsPath = options.get("reports-path").isEmpty()
+				? Files.createTempDirectory("tix-load")
+				: Paths.get(options.get("reports-path"));
+		this.api = new StubTixApi(4);
+		this.rabbitTemplate = new ConfirmingRabbitTemplate();
+		this.store = new MeasurementStore(reportsPath.toString(), options.get("backend"), options.get("format"),
+				SegmentLogInstallationMeasurements.DEFAULT_SEGMENT_MAX_BYTES,
+				MeasurementStore.DEFAULT_HANDLES_MAXIMUM_SIZE, MeasurementStore.DEFAULT_HANDLES_IDLE_SECONDS,
+				AbstractInstallationMeasurements.DEFAULT_MAX_WINDOWS_IN_FLIGHT);
+		this.verifier = new TixSignatureVerifier();
+		this.validator = new TixPacketValidator(false, "localhost", api.getPort(), new TixApiClient(),
+				TixPacketValidator.DEFAULT_CACHE_MAXIMUM_SIZE, TixPacketValidator.DEFAULT_CACHE_POSITIVE_TTL_SECONDS,
+				TixPacketValidator.DEFAULT_CACHE_NEGATIVE_TTL_SECONDS, TixPacketValidator.DEFAULT_CACHE_STALE_TTL_SECONDS,
+				TixPacketValidator.DEFAULT_LOOKUP_THREADS);
+		this.submitter = new RabbitSubmitter(rabbitTemplate, "load-test", RabbitSubmitter.DEFAULT_MAX_IN_FLIGHT,
+				RabbitSubmitter.DEFAULT_CONFIRM_TIMEOUT_MILLIS, RabbitSubmitter.DEFAULT_MAX_ATTEMPTS, options.get("compression"),
+				RabbitSubmitter.DEFAULT_CONFIRM_THREADS);
+		this.backlogDrain = new BacklogDrain(store, submitter);
+		this.tixReceiver = new TixReceiver(store, validator, verifier, submitter, backlogDrain,
+				intOption("store-threads"), intOption("store-queue-capacity"));
+		this.receiver = new RabbitReceiver(tixReceiver, intOption("batch-size"), Long.parseLong(options.get("batch-millis")),
+				intOption("max-in-flight"), intOption("resume-in-flight"));
+		this.broker = new LocalBroker(receiver, intOption("consumers"), intOption("prefetch"));
+		this.installations = new ArrayList<>();
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<>(DEFAULTS);
+		for (String arg: args) {
+			String[] option = arg.split("=", 2);
+			if (option.length != 2 || !DEFAULTS.containsKey(option[0])) {
+				System.err.printf("Unknown option %s, expected key=value with one of %s%n", arg, DEFAULTS.keySet());
+				System.exit(1);
+			}
+			options.put(option[0], option[1]);
+		}
+		LoadHarness harness = new LoadHarness(options);
+		try {
+			harness.run();
+		} finally {
+			harness.close();
+		}
+		System.exit(0);
+	}
+
+	private void run() throws Exception {
+		System.out.printf("Options %s%nReports in %s%n", options, reportsPath);
+		createInstallations();
+		broker.start();
+
+		long tickMillis = Math.max(TimeUnit.MINUTES.toMillis(1) / Long.parseLong(options.get("speedup")), 1L);
+		ExecutorService generators = Executors.newFixedThreadPool(intOption("generator-threads"));
+		ScheduledExecutorService ticks = Executors.newSingleThreadScheduledExecutor();
+		ticks.scheduleAtFixedRate(() -> installations.forEach(installation -> generators.execute(() -> tick(installation))),
+				0, tickMillis, TimeUnit.MILLISECONDS);
+
+		long start = System.nanoTime();
+		long durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("duration-seconds")));
+		long reportNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("report-seconds")));
+		long lastAcked = 0;
+		long lastReport = start;
+		System.out.printf("%8s %10s %10s %10s %8s %8s %10s %8s %9s%n",
+				"seconds", "packets/s", "p50-millis", "p99-millis", "ready", "unacked", "heap-mb", "files", "sets");
+		while (System.nanoTime() - start < durationNanos) {
+			TimeUnit.NANOSECONDS.sleep(Math.min(reportNanos, durationNanos - (System.nanoTime() - start)));
+			long now = System.nanoTime();
+			long acked = broker.acked();
+			report(now - start, (acked - lastAcked) / secondsBetween(lastReport, now));
+			lastAcked = acked;
+			lastReport = now;
+		}
+		ticks.shutdownNow();
+		generators.shutdown();
+		generators.awaitTermination(1, TimeUnit.MINUTES);
+		long producedFor = System.nanoTime() - start;
+		long ackedWhileProducing = broker.acked();
+
+		System.out.println("Draining what is left in the broker");
+		long drainStart = System.nanoTime();
+		while ((broker.ready() > 0 || broker.unacknowledged() > 0) && System.nanoTime() - drainStart < TimeUnit.MINUTES.toNanos(1)) {
+			TimeUnit.MILLISECONDS.sleep(100);
+		}
+		broker.stop();
+		summarize(producedFor, ackedWhileProducing);
+	}
+
+	private void createInstallations() {
+		int count = intOption("installations");
+		int perUser = intOption("installations-per-user");
+		long firstMinute = TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis()) * 60;
+		System.out.printf("Generating keys for %d installations%n", count);
+		for (int i = 0; i < count; i++) {
+			KeyPair keyPair = TixCoreUtils.NEW_KEY_PAIR.get();
+			SimulatedInstallation installation = new SimulatedInstallation(i / perUser + 1, i + 1, keyPair, firstMinute);
+			api.register(installation.userId, installation.installationId, keyPair.getPublic().getEncoded());
+			installations.add(installation);
+		}
+	}
+
+	/** Advances an installation by one simulated minute, publishing whatever it sends in it */
+	private void tick(SimulatedInstallation installation) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		synchronized (installation) {
+			int toSend;
+			if (installation.offlineMinutes > 0) {
+				installation.offlineMinutes--;
+				installation.missedMinutes++;
+				toSend = installation.offlineMinutes == 0 ? installation.missedMinutes : 0;
+			} else if (random.nextDouble() < Double.parseDouble(options.get("burst-probability"))) {
+				bursts.increment();
+				installation.offlineMinutes = intOption("burst-minutes");
+				installation.missedMinutes = 1;
+				toSend = 0;
+			} else {
+				toSend = 1;
+			}
+			if (random.nextDouble() < Double.parseDouble(options.get("ip-change-probability"))) {
+				addressChanges.increment();
+				installation.address++;
+			}
+			if (toSend > 1) {
+				installation.missedMinutes = 0;
+			}
+			for (int i = 0; i < toSend; i++) {
+				try {
+					broker.publish(TixPacketSerDe.shared().serialize(installation.nextPacket()));
+				} catch (JsonProcessingException | RuntimeException e) {
+					generationFailures.increment();
+				}
+			}
+		}
+	}
+
+	private void report(long elapsedNanos, double packetsPerSecond) throws IOException {
+		long heapBytes = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+		peakHeapBytes = Math.max(peakHeapBytes, heapBytes);
+		LatencyHistogram latency = broker.ackLatency();
+		System.out.printf("%8d %10.1f %10d %10d %8d %8d %10d %8d %9d%n",
+				TimeUnit.NANOSECONDS.toSeconds(elapsedNanos), packetsPerSecond,
+				latency.quantileMillis(0.50), latency.quantileMillis(0.99),
+				broker.ready(), broker.unacknowledged(), heapBytes / (1024 * 1024), countFiles(), rabbitTemplate.getMessages());
+	}
+
+	private void summarize(long producedFor, long ackedWhileProducing) throws IOException {
+		LatencyHistogram latency = broker.ackLatency();
+		System.out.println();
+		System.out.printf("Packets published %d, stored and acknowledged %d, requeued %d, rejected %d, not generated %d%n",
+				broker.published(), broker.acked(), broker.requeued(), broker.rejected(), generationFailures.sum());
+		System.out.printf("Sustained %.1f packets/s over %d seconds of load%n",
+				ackedWhileProducing / (producedFor / (double) TimeUnit.SECONDS.toNanos(1)), TimeUnit.NANOSECONDS.toSeconds(producedFor));
+		System.out.printf("Publish to acknowledge latency p50 %d ms, p99 %d ms, mean %.1f ms, max %.1f ms%n",
+				latency.quantileMillis(0.50), latency.quantileMillis(0.99), latency.meanMillis(), latency.maxMillis());
+		System.out.printf("Reconnect bursts %d, address changes %d%n", bursts.sum(), addressChanges.sum());
+		System.out.printf("Packet sets submitted %d, %d bytes; TiX API requests %d%n",
+				rabbitTemplate.getMessages(), rabbitTemplate.getBytes(), api.getRequests());
+		System.out.printf("Peak sampled heap %d MB; %d report files%n", peakHeapBytes / (1024 * 1024), countFiles());
+		System.out.println();
+		System.out.println("Pipeline metrics");
+		for (PublicMetrics component: Arrays.<PublicMetrics>asList(receiver, tixReceiver, verifier, validator, store, submitter)) {
+			component.metrics().stream()
+					.sorted(Comparator.comparing(Metric::getName))
+					.forEach(metric -> System.out.printf("  %s = %s%n", metric.getName(), metric.getValue()));
+		}
+	}
+
+	private long countFiles() throws IOException {
+		try (Stream<Path> files = Files.walk(reportsPath)) {
+			return files.filter(Files::isRegularFile).count();
+		}
+	}
+
+	private void close() throws IOException {
+		receiver.destroy();
+		tixReceiver.destroy();
+		backlogDrain.destroy();
+		submitter.destroy();
+		store.destroy();
+		verifier.destroy();
+		rabbitTemplate.close();
+		api.close();
+		if (!Boolean.parseBoolean(options.get("keep-reports"))) {
+			try (Stream<Path> files = Files.walk(reportsPath)) {
+				files.sorted(Comparator.reverseOrder())
+					.map(Path::toFile)
+					.forEach(File::delete);
+			}
+		}
+	}
+
+	private int intOption(String name) {
+		return Integer.parseInt(options.get(name));
+	}
+
+	private static double secondsBetween(long fromNanos, long toNanos) {
+		return Math.max(toNanos - fromNanos, 1L) / (double) TimeUnit.SECONDS.toNanos(1);
+	}
+
+	private static class SimulatedInstallation {
+		private final long userId;
+		private final long installationId;
+		private final KeyPair keyPair;
+		/** Unix timestamp of the first report in the next packet */
+		private long nextMinute;
+		private int address;
+		private int offlineMinutes;
+		private int missedMinutes;
+
+		SimulatedInstallation(long userId, long installationId, KeyPair keyPair, long firstMinute) {
+			this.userId = userId;
+			this.installationId = installationId;
+			this.keyPair = keyPair;
+			this.nextMinute = firstMinute;
+		}
+
+		TixDataPacket nextPacket() {
+			String from = String.format("10.%d.%d.%d", (installationId >> 8) & 0xff, installationId & 0xff, address % 254 + 1);
+			long initialTimestamp = nextMinute;
+			nextMinute += 60;
+			return PacketGenerator.defaults()
+					.withUserId(userId)
+					.withInstallationId(installationId)
+					.withKeyPair(keyPair)
+					.withFrom(from)
+					.withInitialTimestamp(initialTimestamp)
+					.build();
+		}
+	}
+}
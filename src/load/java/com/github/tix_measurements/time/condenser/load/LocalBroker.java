@@ -0,0 +1,179 @@
+package com.github.tix_measurements.time.condenser.load;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.github.tix_measurements.time.condenser.handlers.RabbitReceiver;
+import com.github.tix_measurements.time.condenser.metrics.LatencyHistogram;
+import com.rabbitmq.client.Channel;
+
+/**
+ * In-process stand-in for the receiving queue. Each consumer thread delivers to the receiver through a channel of its
+ * own, with its own delivery tags and prefetch window, as the listener container does. Acknowledged messages are
+ * timed from publication, nacked ones are requeued, marked as redelivered, or dropped as if dead lettered.
+ */
+class LocalBroker {
+	private final RabbitReceiver receiver;
+	private final int prefetch;
+	private final BlockingQueue<Delivery> queue = new LinkedBlockingQueue<>();
+	private final List<Thread> consumers = new ArrayList<>();
+	private final List<Consumer> channels = new ArrayList<>();
+	private final LatencyHistogram ackLatency = new LatencyHistogram();
+	private final LongAdder published = new LongAdder();
+	private final LongAdder acked = new LongAdder();
+	private final LongAdder requeued = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private volatile boolean running = true;
+
+	LocalBroker(RabbitReceiver receiver, int consumers, int prefetch) {
+		this.receiver = receiver;
+		this.prefetch = prefetch;
+		for (int i = 0; i < consumers; i++) {
+			Consumer consumer = new Consumer();
+			Thread thread = new Thread(consumer, "local-broker-consumer-" + i);
+			thread.setDaemon(true);
+			this.channels.add(consumer);
+			this.consumers.add(thread);
+		}
+	}
+
+	void start() {
+		consumers.forEach(Thread::start);
+	}
+
+	void publish(byte[] body) {
+		published.increment();
+		queue.add(new Delivery(body, System.nanoTime(), false));
+	}
+
+	/** Messages waiting for a consumer */
+	int ready() {
+		return queue.size();
+	}
+
+	/** Messages delivered and not yet acknowledged */
+	int unacknowledged() {
+		return channels.stream().mapToInt(consumer -> consumer.unacked.size()).sum();
+	}
+
+	long published() {
+		return published.sum();
+	}
+
+	long acked() {
+		return acked.sum();
+	}
+
+	long requeued() {
+		return requeued.sum();
+	}
+
+	long rejected() {
+		return rejected.sum();
+	}
+
+	LatencyHistogram ackLatency() {
+		return ackLatency;
+	}
+
+	void stop() throws InterruptedException {
+		running = false;
+		for (Thread consumer: consumers) {
+			consumer.join();
+		}
+	}
+
+	private static class Delivery {
+		private final byte[] body;
+		private final long publishedAt;
+		private final boolean redelivered;
+
+		Delivery(byte[] body, long publishedAt, boolean redelivered) {
+			this.body = body;
+			this.publishedAt = publishedAt;
+			this.redelivered = redelivered;
+		}
+	}
+
+	private class Consumer implements Runnable, InvocationHandler {
+		private final Channel channel = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[] {Channel.class}, this);
+		private final AtomicLong deliveryTags = new AtomicLong();
+		private final NavigableMap<Long, Delivery> unacked = new ConcurrentSkipListMap<>();
+		private final Semaphore window = new Semaphore(prefetch);
+
+		@Override
+		public void run() {
+			try {
+				while (running) {
+					if (!window.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+						continue;
+					}
+					Delivery delivery = queue.poll(100, TimeUnit.MILLISECONDS);
+					if (delivery == null) {
+						window.release();
+						continue;
+					}
+					long deliveryTag = deliveryTags.incrementAndGet();
+					unacked.put(deliveryTag, delivery);
+					receiver.receiveMessage(delivery.body, channel, deliveryTag, delivery.redelivered);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws IOException {
+			switch (method.getName()) {
+			case "basicAck":
+				settle((Long) args[0], (Boolean) args[1], true, false);
+				return null;
+			case "basicNack":
+				settle((Long) args[0], (Boolean) args[1], false, (Boolean) args[2]);
+				return null;
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "equals":
+				return proxy == args[0];
+			case "toString":
+				return "LocalBroker channel";
+			default:
+				throw new UnsupportedOperationException(method.getName());
+			}
+		}
+
+		private void settle(long deliveryTag, boolean multiple, boolean ack, boolean requeue) {
+			NavigableMap<Long, Delivery> settled = multiple
+					? unacked.headMap(deliveryTag, true)
+					: unacked.subMap(deliveryTag, true, deliveryTag, true);
+			long now = System.nanoTime();
+			int count = 0;
+			for (Delivery delivery: settled.values()) {
+				if (ack) {
+					ackLatency.record(now - delivery.publishedAt);
+					acked.increment();
+				} else if (requeue) {
+					requeued.increment();
+					queue.add(new Delivery(delivery.body, delivery.publishedAt, true));
+				} else {
+					rejected.increment();
+				}
+				count++;
+			}
+			settled.clear();
+			window.release(count);
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package com.github.tix_measurements.time.condenser.load;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.tix_measurements.time.condenser.model.TixInstallation;
+import com.github.tix_measurements.time.condenser.model.TixUser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the user and installation endpoints of the TiX API that packets are validated against, for the installations
+ * registered with it. Anything else is answered with a 404, as the real API does for unknown ids.
+ */
+class StubTixApi implements AutoCloseable {
+	private static final String API_PATH = "/api/user/";
+
+	private final ObjectMapper mapper = new ObjectMapper();
+	/** Installations of each user, by installation id */
+	private final Map<Long, Map<Long, TixInstallation>> users = new ConcurrentHashMap<>();
+	private final LongAdder requests = new LongAdder();
+	private final ExecutorService workers;
+	private final HttpServer server;
+
+	StubTixApi(int threads) throws IOException {
+		this.workers = Executors.newFixedThreadPool(threads);
+		this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		this.server.setExecutor(workers);
+		this.server.createContext(API_PATH, this::handle);
+		this.server.start();
+	}
+
+	int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	long getRequests() {
+		return requests.sum();
+	}
+
+	void register(long userId, long installationId, byte[] publicKey) {
+		users.computeIfAbsent(userId, id -> new ConcurrentHashMap<>())
+				.put(installationId, new TixInstallation(installationId, "load-" + installationId, Base64.getEncoder().encodeToString(publicKey)));
+	}
+
+	/** Answers {@code user/<id>}, {@code user/<id>/installation} and {@code user/<id>/installation/<id>} */
+	private void handle(HttpExchange exchange) throws IOException {
+		requests.increment();
+		try {
+			String[] path = exchange.getRequestURI().getPath().substring(API_PATH.length()).split("/");
+			Map<Long, TixInstallation> installations = users.get(Long.parseLong(path[0]));
+			if (installations == null) {
+				respond(exchange, 404, null);
+			} else if (path.length == 1) {
+				respond(exchange, 200, new TixUser(Long.parseLong(path[0]), "load-" + path[0], true));
+			} else if (path.length == 2 && path[1].equals("installation")) {
+				respond(exchange, 200, new ArrayList<>(installations.values()));
+			} else if (path.length == 3 && path[1].equals("installation") && installations.containsKey(Long.parseLong(path[2]))) {
+				respond(exchange, 200, installations.get(Long.parseLong(path[2])));
+			} else {
+				respond(exchange, 404, null);
+			}
+		} catch (NumberFormatException e) {
+			respond(exchange, 400, null);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void respond(HttpExchange exchange, int status, Object body) throws IOException {
+		byte[] bytes = body == null ? "{}".getBytes(StandardCharsets.UTF_8) : mapper.writeValueAsBytes(body);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	List<Long> userIds() {
+		return new ArrayList<>(users.keySet());
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		workers.shutdownNow();
+	}
+}
@@ -0,0 +1,176 @@
+package com.github.tix_measurements.time.condenser.handlers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import com.github.tix_measurements.time.condenser.sender.RabbitSubmitter;
+import com.github.tix_measurements.time.condenser.sender.SubmittablePacketSet;
+import com.github.tix_measurements.time.condenser.store.MeasurementStore;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Submits, in the background, the packet sets left ready in the store by a previous run. Installations are drained in
+ * parallel on a bounded pool, and submissions towards RabbitMQ are rate limited, so live consumption can proceed
+ * meanwhile. A failing installation is logged and counted without stopping the others.
+ */
+@Component
+public class BacklogDrain implements PublicMetrics, DisposableBean {
+	public static final int DEFAULT_THREADS = 4;
+	public static final double DEFAULT_SUBMITS_PER_SECOND = 50.0;
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+	private final MeasurementStore measurementStore;
+	private final RabbitSubmitter submitter;
+	private final int threads;
+	private final ExecutorService workers;
+	private final RateLimiter submits;
+	private final AtomicReference<CompletableFuture<Void>> drain;
+	private final AtomicLong installations;
+	private final LongAdder drained;
+	private final LongAdder failed;
+	private final LongAdder submitted;
+	private volatile long startedAt;
+	private volatile long finishedAt;
+
+	public BacklogDrain(MeasurementStore measurementStore, RabbitSubmitter submitter) {
+		this(measurementStore, submitter, DEFAULT_THREADS, DEFAULT_SUBMITS_PER_SECOND);
+	}
+
+	@Autowired
+	public BacklogDrain(MeasurementStore measurementStore,
+	                    RabbitSubmitter submitter,
+	                    @Value("${tix-condenser.drain.threads}") int threads,
+	                    @Value("${tix-condenser.drain.submits-per-second}") double submitsPerSecond) {
+		logger.info("Creating BacklogDrain");
+		logger.trace("threads={} submitsPerSecond={}", threads, submitsPerSecond);
+		try {
+			assertThat(measurementStore).isNotNull();
+			assertThat(submitter).isNotNull();
+			assertThat(threads).isPositive();
+			assertThat(submitsPerSecond).isPositive();
+		} catch (AssertionError ae) {
+			throw new IllegalArgumentException(ae);
+		}
+		this.measurementStore = measurementStore;
+		this.submitter = submitter;
+		this.threads = threads;
+		this.workers = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+				.setNameFormat("backlog-drain-%d")
+				.setDaemon(true)
+				.build());
+		this.submits = RateLimiter.create(submitsPerSecond);
+		this.drain = new AtomicReference<>();
+		this.installations = new AtomicLong();
+		this.drained = new LongAdder();
+		this.failed = new LongAdder();
+		this.submitted = new LongAdder();
+	}
+
+	/** Starts draining, once; later calls return the drain already started */
+	public CompletableFuture<Void> start() {
+		CompletableFuture<Void> started = new CompletableFuture<>();
+		if (!drain.compareAndSet(null, started)) {
+			return drain.get();
+		}
+		startedAt = System.currentTimeMillis();
+		CompletableFuture.supplyAsync(this::storedInstallations, workers)
+				.thenCompose(stored -> {
+					installations.set(stored.size());
+					logger.info("Draining {} stored installations", stored.size());
+					return CompletableFuture.allOf(stored.entrySet().stream()
+							.map(installation -> CompletableFuture.runAsync(() -> drain(installation.getValue(), installation.getKey()), workers))
+							.toArray(CompletableFuture[]::new));
+				})
+				.whenComplete((result, error) -> {
+					finishedAt = System.currentTimeMillis();
+					if (error != null) {
+						logger.error("Backlog drain failed", error);
+						started.completeExceptionally(error);
+					} else {
+						logger.info("Backlog drain finished: {} installations, {} failed, {} sets submitted",
+								drained.sum(), failed.sum(), submitted.sum());
+						started.complete(null);
+					}
+				});
+		return started;
+	}
+
+	private Map<Long, Long> storedInstallations() {
+		try {
+			return measurementStore.storedInstallations();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void drain(long userId, long installationId) {
+		try {
+			// Following sets are extracted while earlier ones await their confirm, as many as the installation allows
+			Deque<CompletableFuture<Optional<SubmittablePacketSet>>> inFlight = new ArrayDeque<>();
+			Optional<SubmittablePacketSet> next = measurementStore.checkAndExtract(userId, installationId);
+			while (next.isPresent() || !inFlight.isEmpty()) {
+				if (next.isPresent()) {
+					SubmittablePacketSet current = next.get();
+					submits.acquire();
+					inFlight.addLast(submitter.submit(current));
+					submitted.increment();
+					next = current.following();
+				} else {
+					next = inFlight.removeFirst().join();
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			failed.increment();
+			logger.error("Draining installation {} of user {} failed", installationId, userId,
+					e instanceof CompletionException ? e.getCause() : e);
+		} finally {
+			drained.increment();
+		}
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		long finished = finishedAt;
+		long started = startedAt;
+		List<Metric<?>> metrics = new ArrayList<>();
+		metrics.add(new Metric<>("backlog-drain.threads", threads));
+		metrics.add(new Metric<>("backlog-drain.running", started != 0 && finished == 0 ? 1 : 0));
+		metrics.add(new Metric<>("backlog-drain.installations", installations.get()));
+		metrics.add(new Metric<>("backlog-drain.installations.drained", drained.sum()));
+		metrics.add(new Metric<>("backlog-drain.installations.failed", failed.sum()));
+		metrics.add(new Metric<>("backlog-drain.sets.submitted", submitted.sum()));
+		metrics.add(new Metric<>("backlog-drain.elapsed-millis", started == 0 ? 0 : (finished == 0 ? System.currentTimeMillis() : finished) - started));
+		return metrics;
+	}
+
+	@Override
+	public void destroy() {
+		workers.shutdownNow();
+	}
+}
@@ -0,0 +1,117 @@
+package com.github.tix_measurements.time.condenser.handlers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounds the messages a receiver holds between delivery and acknowledgement. Once {@code maxInFlight} are held the
+ * gate closes, and consumers wait in {@link #acquire()} until releases bring the count down to {@code resumeInFlight}.
+ * The gap between both keeps consumption from flapping a message at a time around a single limit.
+ */
+class Backpressure {
+	private final int maxInFlight;
+	private final int resumeInFlight;
+	private final ReentrantLock lock;
+	private final Condition resumed;
+	private int inFlight;
+	private boolean paused;
+	private long pauses;
+	private long pausedSince;
+	private long pausedNanos;
+
+	Backpressure(int maxInFlight, int resumeInFlight) {
+		try {
+			assertThat(maxInFlight).isPositive();
+			assertThat(resumeInFlight).isNotNegative().isLessThan(maxInFlight);
+		} catch (AssertionError ae) {
+			throw new IllegalArgumentException(ae);
+		}
+		this.maxInFlight = maxInFlight;
+		this.resumeInFlight = resumeInFlight;
+		this.lock = new ReentrantLock();
+		this.resumed = lock.newCondition();
+	}
+
+	/** Takes one message in, waiting first while the gate is closed */
+	void acquire() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (paused) {
+				resumed.await();
+			}
+			inFlight++;
+			if (inFlight >= maxInFlight) {
+				paused = true;
+				pauses++;
+				pausedSince = System.nanoTime();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Lets the given number of messages out, reopening the gate once few enough remain */
+	void release(int count) {
+		lock.lock();
+		try {
+			inFlight -= count;
+			if (paused && inFlight <= resumeInFlight) {
+				paused = false;
+				pausedNanos += System.nanoTime() - pausedSince;
+				resumed.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	int maxInFlight() {
+		return maxInFlight;
+	}
+
+	int resumeInFlight() {
+		return resumeInFlight;
+	}
+
+	int inFlight() {
+		lock.lock();
+		try {
+			return inFlight;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	boolean isPaused() {
+		lock.lock();
+		try {
+			return paused;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Times the gate has closed */
+	long pauses() {
+		lock.lock();
+		try {
+			return pauses;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Total time spent closed, including the current pause */
+	long pausedMillis() {
+		lock.lock();
+		try {
+			long nanos = paused ? pausedNanos + System.nanoTime() - pausedSince : pausedNanos;
+			return TimeUnit.NANOSECONDS.toMillis(nanos);
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package com.github.tix_measurements.time.condenser.handlers;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import com.github.tix_measurements.time.core.data.TixDataPacket;
+
+/**
+ * Some installations of a batch could not be stored. The packets of every other installation in it were stored, so
+ * only the failed ones need another attempt.
+ */
+public class BatchStoreException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	private final Set<TixDataPacket> failedPackets;
+
+	public BatchStoreException(List<TixDataPacket> failedPackets, IOException cause) {
+		super(String.format("%d packets could not be stored", failedPackets.size()), cause);
+		this.failedPackets = Collections.newSetFromMap(new IdentityHashMap<>());
+		this.failedPackets.addAll(failedPackets);
+	}
+
+	/** Whether this very packet instance is one that could not be stored */
+	public boolean failed(TixDataPacket packet) {
+		return failedPackets.contains(packet);
+	}
+
+	public int failedCount() {
+		return failedPackets.size();
+	}
+}
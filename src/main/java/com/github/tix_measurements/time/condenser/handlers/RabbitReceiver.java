@@ -3,42 +3,300 @@ package com.github.tix_measurements.time.condenser.handlers;
 import static org.assertj.core.api.Assertions.assertThat;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.support.AmqpHeaders;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.messaging.handler.annotation.Header;
 import org.springframework.messaging.handler.annotation.Payload;
 import org.springframework.stereotype.Component;
 
+import com.github.tix_measurements.time.condenser.metrics.LatencyHistogram;
 import com.github.tix_measurements.time.condenser.utils.jackson.TixPacketSerDe;
 import com.github.tix_measurements.time.core.data.TixDataPacket;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.rabbitmq.client.Channel;
 
+/**
+ * Consumes packets in batches of up to {@code batchSize} messages, or whatever arrived within {@code batchMillis} of
+ * the first one. Messages are acknowledged, all at once, only after their batch is stored. Undecodable messages are
+ * logged and acknowledged along with their batch, as redelivering them cannot help.
+ *
+ * When some installations of a batch cannot be stored only their messages are negatively acknowledged, and the rest
+ * of the batch is acknowledged as usual. A failed message is requeued once; if it fails again after being redelivered
+ * it is rejected without requeueing, so that a persistent failure neither loops at the head of the queue nor keeps
+ * re-storing its neighbours. Rejected messages go to the dead letter exchange of the queue, if it has one.
+ *
+ * Delivery tags are scoped to a channel, so each consumer channel fills its own batch. A full batch is handed on
+ * without waiting for it to be stored, and the consumer goes on filling the next one; batches of a channel are still
+ * acknowledged in delivery order, as a multiple acknowledgement covers every earlier tag.
+ *
+ * At most {@code maxInFlight} messages are held unacknowledged. Past that, consumers block until storing brings the
+ * count down to {@code resumeInFlight}, and the broker stops delivering to them once their prefetch window fills.
+ */
 @Component
-public class RabbitReceiver {
+public class RabbitReceiver implements PublicMetrics, DisposableBean {
+	public static final int DEFAULT_BATCH_SIZE = 200;
+	public static final long DEFAULT_BATCH_MILLIS = 100L;
+	public static final int DEFAULT_MAX_IN_FLIGHT = 2000;
+	public static final int DEFAULT_RESUME_IN_FLIGHT = 1000;
+
 	private final Logger logger = LoggerFactory.getLogger(this.getClass());
 	private final TixPacketSerDe packetSerDe;
 	private final TixReceiver nextReceiver;
-	
+	private final int batchSize;
+	private final long batchMillis;
+	private final Map<Channel, Batch> batches;
+	private final ScheduledExecutorService timeouts;
+	/** Messages received and not yet acknowledged */
+	private final Backpressure backpressure;
+	private final LongAdder undecodable;
+	private final LongAdder stored;
+	private final LongAdder requeued;
+	private final LongAdder rejected;
+	private final LatencyHistogram deserializeLatency;
+	private final LatencyHistogram batchLatency;
+
 	public RabbitReceiver(TixReceiver nextReceiver) {
+		this(nextReceiver, DEFAULT_BATCH_SIZE, DEFAULT_BATCH_MILLIS, DEFAULT_MAX_IN_FLIGHT, DEFAULT_RESUME_IN_FLIGHT);
+	}
+
+	@Autowired
+	public RabbitReceiver(TixReceiver nextReceiver,
+	                      @Value("${tix-condenser.queues.receiving.batch-size}") int batchSize,
+	                      @Value("${tix-condenser.queues.receiving.batch-millis}") long batchMillis,
+	                      @Value("${tix-condenser.queues.receiving.max-in-flight}") int maxInFlight,
+	                      @Value("${tix-condenser.queues.receiving.resume-in-flight}") int resumeInFlight) {
 		logger.info("Creating RabbitReceiver");
+		logger.trace("batchSize={} batchMillis={} maxInFlight={} resumeInFlight={}",
+				batchSize, batchMillis, maxInFlight, resumeInFlight);
 		try {
 			assertThat(nextReceiver).isNotNull();
+			assertThat(batchSize).isPositive();
+			assertThat(batchMillis).isPositive();
 		} catch (AssertionError ae) {
 			throw new IllegalArgumentException(ae);
 		}
-		this.packetSerDe = new TixPacketSerDe();
+		this.packetSerDe = TixPacketSerDe.shared();
 		this.nextReceiver = nextReceiver;
+		this.batchSize = batchSize;
+		this.batchMillis = batchMillis;
+		this.batches = new ConcurrentHashMap<>();
+		this.timeouts = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+				.setNameFormat("rabbit-batch-timeout-%d")
+				.setDaemon(true)
+				.build());
+		this.backpressure = new Backpressure(maxInFlight, resumeInFlight);
+		this.undecodable = new LongAdder();
+		this.stored = new LongAdder();
+		this.requeued = new LongAdder();
+		this.rejected = new LongAdder();
+		this.deserializeLatency = new LatencyHistogram();
+		this.batchLatency = new LatencyHistogram();
 	}
-	
+
 	@RabbitListener(queues = "${tix-condenser.queues.receiving.name}")
-	public void receiveMessage(@Payload byte[] message) {
-		logger.info("New message received");
+	public void receiveMessage(@Payload byte[] message, Channel channel, @Header(AmqpHeaders.DELIVERY_TAG) long deliveryTag,
+	                           @Header(AmqpHeaders.REDELIVERED) boolean redelivered) {
+		logger.debug("New message received");
 		logger.trace("message={}", message);
 		try {
-			TixDataPacket packet = packetSerDe.deserialize(message);
-			nextReceiver.receiveMessage(packet);
-		} catch (IOException e) {
-			logger.error("Message processing failed", e);
+			backpressure.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while consumption was paused", e);
+		}
+		batches.computeIfAbsent(channel, Batch::new).add(new Delivery(message, deliveryTag, redelivered));
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>();
+		metrics.add(new Metric<>("receiver.in-flight", backpressure.inFlight()));
+		metrics.add(new Metric<>("receiver.max-in-flight", backpressure.maxInFlight()));
+		metrics.add(new Metric<>("receiver.resume-in-flight", backpressure.resumeInFlight()));
+		metrics.add(new Metric<>("receiver.paused", backpressure.isPaused() ? 1 : 0));
+		metrics.add(new Metric<>("receiver.pauses", backpressure.pauses()));
+		metrics.add(new Metric<>("receiver.paused-millis", backpressure.pausedMillis()));
+		metrics.add(new Metric<>("receiver.stored", stored.sum()));
+		metrics.add(new Metric<>("receiver.undecodable", undecodable.sum()));
+		metrics.add(new Metric<>("receiver.requeued", requeued.sum()));
+		metrics.add(new Metric<>("receiver.rejected", rejected.sum()));
+		metrics.addAll(deserializeLatency.toMetrics("receiver.deserialize.latency"));
+		metrics.addAll(batchLatency.toMetrics("receiver.batch.latency"));
+		return metrics;
+	}
+
+	@Override
+	public void destroy() {
+		timeouts.shutdownNow();
+	}
+
+	private class Batch {
+		private final Channel channel;
+		/** Batches handed on and not yet acknowledged, oldest first */
+		private final Deque<Flushed> unsettled;
+		private List<Delivery> deliveries;
+		private ScheduledFuture<?> timeout;
+
+		Batch(Channel channel) {
+			this.channel = channel;
+			this.unsettled = new ArrayDeque<>();
+			this.deliveries = new ArrayList<>(batchSize);
+		}
+
+		synchronized void add(Delivery delivery) {
+			deliveries.add(delivery);
+			if (deliveries.size() >= batchSize) {
+				flush();
+			} else if (deliveries.size() == 1) {
+				timeout = timeouts.schedule(this::flush, batchMillis, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		/** Decodes the pending messages and hands them on to be stored, settling them once that completes */
+		synchronized void flush() {
+			if (deliveries.isEmpty()) {
+				return;
+			}
+			if (timeout != null) {
+				timeout.cancel(false);
+				timeout = null;
+			}
+			Flushed flushed = new Flushed(deliveries);
+			deliveries = new ArrayList<>(batchSize);
+
+			List<TixDataPacket> packets = new ArrayList<>(flushed.deliveries.size());
+			// Delivery each packet was decoded from
+			List<Delivery> decodedFrom = new ArrayList<>(flushed.deliveries.size());
+			for (Delivery delivery: flushed.deliveries) {
+				long start = System.nanoTime();
+				try {
+					packets.add(packetSerDe.deserialize(delivery.body));
+					decodedFrom.add(delivery);
+					deserializeLatency.record(System.nanoTime() - start);
+				} catch (IOException e) {
+					undecodable.increment();
+					logger.error("Message processing failed", e);
+				}
+			}
+			unsettled.addLast(flushed);
+
+			CompletableFuture<Void> storing;
+			try {
+				storing = packets.isEmpty() ? CompletableFuture.completedFuture(null) : nextReceiver.receiveBatchAsync(packets);
+			} catch (RuntimeException e) {
+				storing = new CompletableFuture<>();
+				storing.completeExceptionally(e);
+			}
+			storing.whenComplete((ignored, error) -> {
+				Set<Delivery> failed = new HashSet<>();
+				if (error == null) {
+					batchLatency.record(System.nanoTime() - flushed.start);
+				} else {
+					Throwable cause = unwrap(error);
+					for (int i = 0; i < packets.size(); i++) {
+						if (!(cause instanceof BatchStoreException) || ((BatchStoreException) cause).failed(packets.get(i))) {
+							failed.add(decodedFrom.get(i));
+						}
+					}
+					logger.error("{} messages of a batch of {} could not be stored", failed.size(), flushed.deliveries.size(), cause);
+				}
+				stored.add(packets.size() - failed.size());
+				settle(flushed, failed);
+			});
+		}
+
+		/** Acknowledges every batch at the head of the channel that has finished, so tags are settled in order */
+		private synchronized void settle(Flushed flushed, Set<Delivery> failed) {
+			flushed.failed = failed;
+			while (!unsettled.isEmpty() && unsettled.peekFirst().failed != null) {
+				Flushed head = unsettled.pollFirst();
+				acknowledge(head);
+				backpressure.release(head.deliveries.size());
+			}
+		}
+
+		/**
+		 * Settles the failed messages one by one, then acknowledges the rest with a single multiple acknowledgement on
+		 * the last tag that was not already settled
+		 */
+		private void acknowledge(Flushed flushed) {
+			try {
+				long lastStoredTag = -1;
+				for (Delivery delivery: flushed.deliveries) {
+					if (!flushed.failed.contains(delivery)) {
+						lastStoredTag = delivery.tag;
+					} else if (delivery.redelivered) {
+						channel.basicNack(delivery.tag, false, false);
+						rejected.increment();
+					} else {
+						channel.basicNack(delivery.tag, false, true);
+						requeued.increment();
+					}
+				}
+				if (lastStoredTag >= 0) {
+					channel.basicAck(lastStoredTag, true);
+				}
+			} catch (IOException | RuntimeException e) {
+				logger.error("Could not acknowledge batch, the broker will redeliver it once the channel closes", e);
+				batches.remove(channel, this);
+			}
+		}
+	}
+
+	private static Throwable unwrap(Throwable error) {
+		Throwable cause = error;
+		while ((cause instanceof CompletionException || cause instanceof UncheckedIOException) && cause.getCause() != null) {
+			cause = cause.getCause();
+		}
+		return cause;
+	}
+
+	private static class Delivery {
+		private final byte[] body;
+		private final long tag;
+		private final boolean redelivered;
+
+		Delivery(byte[] body, long tag, boolean redelivered) {
+			this.body = body;
+			this.tag = tag;
+			this.redelivered = redelivered;
+		}
+	}
+
+	private static class Flushed {
+		private final List<Delivery> deliveries;
+		private final long start;
+		/** Deliveries that could not be stored, set once the batch finishes */
+		private Set<Delivery> failed;
+
+		Flushed(List<Delivery> deliveries) {
+			this.deliveries = deliveries;
+			this.start = System.nanoTime();
 		}
 	}
 }
@@ -0,0 +1,219 @@
+package com.github.tix_measurements.time.condenser.handlers;
+
+import static java.lang.String.format;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestTemplate;
+
+import com.github.tix_measurements.time.condenser.metrics.LatencyHistogram;
+
+/**
+ * HTTP client for the TiX API. Connections are pooled and kept alive, every request has connect and read timeouts,
+ * and a bulkhead caps the number of concurrent requests so a slow API can not hold every caller thread.
+ */
+@Component
+public class TixApiClient implements ClientHttpRequestInterceptor, PublicMetrics, DisposableBean {
+	public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 2000;
+	public static final int DEFAULT_READ_TIMEOUT_MILLIS = 5000;
+	public static final int DEFAULT_MAX_CONNECTIONS = 32;
+	public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 16;
+	public static final int DEFAULT_ACQUIRE_TIMEOUT_MILLIS = 1000;
+
+	private static final Pattern ID_SEGMENT = Pattern.compile("^\\d+$");
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+	private final CloseableHttpClient httpClient;
+	private final RestTemplate restTemplate;
+	private final Semaphore bulkhead;
+	private final int maxConcurrentRequests;
+	private final long acquireTimeoutMillis;
+	private final LongAdder rejections;
+	private final Map<String, LatencyHistogram> latencies;
+
+	public TixApiClient() {
+		this(DEFAULT_CONNECT_TIMEOUT_MILLIS,
+				DEFAULT_READ_TIMEOUT_MILLIS,
+				DEFAULT_MAX_CONNECTIONS,
+				DEFAULT_MAX_CONCURRENT_REQUESTS,
+				DEFAULT_ACQUIRE_TIMEOUT_MILLIS);
+	}
+
+	@Autowired
+	public TixApiClient(@Value("${tix-condenser.tix-api.client.connect-timeout-millis}") int connectTimeoutMillis,
+	                    @Value("${tix-condenser.tix-api.client.read-timeout-millis}") int readTimeoutMillis,
+	                    @Value("${tix-condenser.tix-api.client.max-connections}") int maxConnections,
+	                    @Value("${tix-condenser.tix-api.client.max-concurrent-requests}") int maxConcurrentRequests,
+	                    @Value("${tix-condenser.tix-api.client.acquire-timeout-millis}") int acquireTimeoutMillis) {
+		logger.info("Creating TixApiClient");
+		logger.trace("connectTimeoutMillis={} readTimeoutMillis={} maxConnections={} maxConcurrentRequests={} acquireTimeoutMillis={}",
+				connectTimeoutMillis, readTimeoutMillis, maxConnections, maxConcurrentRequests, acquireTimeoutMillis);
+		try {
+			assertThat(connectTimeoutMillis).isPositive();
+			assertThat(readTimeoutMillis).isPositive();
+			assertThat(maxConnections).isPositive();
+			assertThat(maxConcurrentRequests).isPositive();
+			assertThat(acquireTimeoutMillis).isNotNegative();
+		} catch (AssertionError ae) {
+			throw new IllegalArgumentException(ae);
+		}
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(maxConnections);
+		connectionManager.setDefaultMaxPerRoute(maxConnections);
+		this.httpClient = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(RequestConfig.custom()
+						.setConnectTimeout(connectTimeoutMillis)
+						.setSocketTimeout(readTimeoutMillis)
+						.setConnectionRequestTimeout(acquireTimeoutMillis)
+						.build())
+				.build();
+		this.restTemplate = new RestTemplate(new HttpComponentsClientHttpRequestFactory(httpClient));
+		this.restTemplate.setInterceptors(Collections.singletonList(this));
+		this.bulkhead = new Semaphore(maxConcurrentRequests);
+		this.maxConcurrentRequests = maxConcurrentRequests;
+		this.acquireTimeoutMillis = acquireTimeoutMillis;
+		this.rejections = new LongAdder();
+		this.latencies = new ConcurrentHashMap<>();
+	}
+
+	public RestTemplate getRestTemplate() {
+		return restTemplate;
+	}
+
+	@Override
+	public ClientHttpResponse intercept(HttpRequest request, byte[] body, ClientHttpRequestExecution execution) throws IOException {
+		try {
+			if (!bulkhead.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+				rejections.increment();
+				throw new IOException(format("Too many concurrent requests to the TiX API (max %d)", maxConcurrentRequests));
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a TiX API request slot");
+		}
+		LatencyHistogram latency = latencies.computeIfAbsent(endpointOf(request.getURI()), endpoint -> new LatencyHistogram());
+		long start = System.nanoTime();
+		try {
+			return new MeasuredResponse(execution.execute(request, body), latency, start);
+		} catch (IOException | RuntimeException e) {
+			latency.record(System.nanoTime() - start);
+			bulkhead.release();
+			throw e;
+		}
+	}
+
+	/** Names an endpoint after its path, skipping the API prefix and numeric ids (e.g. {@code user.installation}) */
+	static String endpointOf(URI uri) {
+		StringBuilder endpoint = new StringBuilder();
+		for (String segment: uri.getPath().split("/")) {
+			if (segment.isEmpty() || segment.equals("api") || ID_SEGMENT.matcher(segment).matches()) {
+				continue;
+			}
+			if (endpoint.length() > 0) {
+				endpoint.append('.');
+			}
+			endpoint.append(segment);
+		}
+		return endpoint.toString();
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>();
+		metrics.add(new Metric<>("tix-api.requests.active", maxConcurrentRequests - bulkhead.availablePermits()));
+		metrics.add(new Metric<>("tix-api.requests.rejected", rejections.sum()));
+		latencies.forEach((endpoint, latency) -> metrics.addAll(latency.toMetrics(format("tix-api.requests.%s", endpoint))));
+		return metrics;
+	}
+
+	@Override
+	public void destroy() throws IOException {
+		httpClient.close();
+	}
+
+	/** Holds the bulkhead slot and the latency measurement until the response body has been consumed */
+	private class MeasuredResponse implements ClientHttpResponse {
+		private final ClientHttpResponse response;
+		private final LatencyHistogram latency;
+		private final long start;
+		private boolean closed;
+
+		MeasuredResponse(ClientHttpResponse response, LatencyHistogram latency, long start) {
+			this.response = response;
+			this.latency = latency;
+			this.start = start;
+		}
+
+		@Override
+		public HttpStatus getStatusCode() throws IOException {
+			return response.getStatusCode();
+		}
+
+		@Override
+		public int getRawStatusCode() throws IOException {
+			return response.getRawStatusCode();
+		}
+
+		@Override
+		public String getStatusText() throws IOException {
+			return response.getStatusText();
+		}
+
+		@Override
+		public HttpHeaders getHeaders() {
+			return response.getHeaders();
+		}
+
+		@Override
+		public InputStream getBody() throws IOException {
+			return response.getBody();
+		}
+
+		@Override
+		public void close() {
+			try {
+				response.close();
+			} finally {
+				if (!closed) {
+					closed = true;
+					latency.record(System.nanoTime() - start);
+					bulkhead.release();
+				}
+			}
+		}
+	}
+}
@@ -3,67 +3,286 @@ package com.github.tix_measurements.time.condenser.handlers;
 import static java.lang.String.format;
 import static org.assertj.core.api.Assertions.assertThat;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
+import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Component;
 import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.RestTemplate;
 
+import com.github.tix_measurements.time.condenser.metrics.LatencyHistogram;
 import com.github.tix_measurements.time.condenser.model.TixInstallation;
 import com.github.tix_measurements.time.condenser.model.TixUser;
 import com.github.tix_measurements.time.core.data.TixDataPacket;
 import com.github.tix_measurements.time.core.util.TixCoreUtils;
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 @Component
-public class TixPacketValidator {
+public class TixPacketValidator implements PublicMetrics {
 	public static final String USER_TEMPLATE = "%s/user/%d";
 	public static final String INSTALLATION_TEMPLATE = "%s/user/%d/installation/%d";
+	public static final String USER_INSTALLATIONS_TEMPLATE = "%s/user/%d/installation";
+
+	public static final long DEFAULT_CACHE_MAXIMUM_SIZE = 100000L;
+	public static final long DEFAULT_CACHE_POSITIVE_TTL_SECONDS = 5 * 60L;
+	public static final long DEFAULT_CACHE_NEGATIVE_TTL_SECONDS = 60L;
+	public static final long DEFAULT_CACHE_STALE_TTL_SECONDS = 60 * 60L;
+	public static final int DEFAULT_LOOKUP_THREADS = 8;
 
 	private final Logger logger = LoggerFactory.getLogger(this.getClass());
 	private final HttpHeaders headers;
 	private final RestTemplate apiClient;
 	private final String apiPath;
+	private final long negativeTtlNanos;
+	private final LoadingCache<ValidationKey, Validation> validations;
+	private final ConcurrentMap<ValidationKey, CompletableFuture<Validation>> inFlight;
+	private final Cache<Long, UserState> users;
+	private final ConcurrentMap<Long, CompletableFuture<UserState>> userLookups;
+	private final ExecutorService lookupExecutor;
+	private final LatencyHistogram latency;
 
+	public TixPacketValidator(boolean useHttps, String apiHost, int apiPort) {
+		this(useHttps, apiHost, apiPort,
+				new TixApiClient(),
+				DEFAULT_CACHE_MAXIMUM_SIZE,
+				DEFAULT_CACHE_POSITIVE_TTL_SECONDS,
+				DEFAULT_CACHE_NEGATIVE_TTL_SECONDS,
+				DEFAULT_CACHE_STALE_TTL_SECONDS,
+				DEFAULT_LOOKUP_THREADS);
+	}
+
+	@Autowired
 	public TixPacketValidator(@Value("${tix-condenser.tix-api.https}") boolean useHttps,
-	                           @Value("${tix-condenser.tix-api.host}") String apiHost,
-	                           @Value("${tix-condenser.tix-api.port}") int apiPort) {
+	                          @Value("${tix-condenser.tix-api.host}") String apiHost,
+	                          @Value("${tix-condenser.tix-api.port}") int apiPort,
+	                          TixApiClient tixApiClient,
+	                          @Value("${tix-condenser.tix-api.cache.maximum-size}") long cacheMaximumSize,
+	                          @Value("${tix-condenser.tix-api.cache.positive-ttl-seconds}") long positiveTtlSeconds,
+	                          @Value("${tix-condenser.tix-api.cache.negative-ttl-seconds}") long negativeTtlSeconds,
+	                          @Value("${tix-condenser.tix-api.cache.stale-ttl-seconds}") long staleTtlSeconds,
+	                          @Value("${tix-condenser.tix-api.lookup-threads}") int lookupThreads) {
 		logger.info("Creating TixPacketValidator");
 		logger.trace("useHttps={} apiHost={} apiPort={}", useHttps, apiHost, apiPort);
+		logger.trace("cacheMaximumSize={} positiveTtlSeconds={} negativeTtlSeconds={} staleTtlSeconds={}",
+				cacheMaximumSize, positiveTtlSeconds, negativeTtlSeconds, staleTtlSeconds);
+		logger.trace("lookupThreads={}", lookupThreads);
 		try {
 			assertThat(apiHost).isNotEmpty().isNotEmpty();
 			assertThat(apiPort).isPositive();
+			assertThat(tixApiClient).isNotNull();
+			assertThat(cacheMaximumSize).isPositive();
+			assertThat(positiveTtlSeconds).isPositive();
+			assertThat(negativeTtlSeconds).isPositive();
+			assertThat(staleTtlSeconds).isGreaterThanOrEqualTo(positiveTtlSeconds);
+			assertThat(lookupThreads).isPositive();
 		} catch (AssertionError ae) {
 			throw new IllegalArgumentException(ae);
 		}
 		this.headers = new HttpHeaders();
-		this.apiClient = new RestTemplate();
+		this.apiClient = tixApiClient.getRestTemplate();
 		this.apiPath = format("http%s://%s:%d/api", useHttps ? "s" : "", apiHost, apiPort);
+		this.negativeTtlNanos = TimeUnit.SECONDS.toNanos(negativeTtlSeconds);
+		this.inFlight = new ConcurrentHashMap<>();
+		this.users = CacheBuilder.newBuilder()
+				.maximumSize(cacheMaximumSize)
+				.expireAfterWrite(positiveTtlSeconds, TimeUnit.SECONDS)
+				.build();
+		this.userLookups = new ConcurrentHashMap<>();
+		this.lookupExecutor = Executors.newFixedThreadPool(lookupThreads, new ThreadFactoryBuilder()
+				.setNameFormat("validation-lookup-%d")
+				.setDaemon(true)
+				.build());
+		this.latency = new LatencyHistogram();
+
+		ExecutorService refreshExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+				.setNameFormat("validation-refresh-%d")
+				.setDaemon(true)
+				.build());
+		this.validations = CacheBuilder.newBuilder()
+				.maximumSize(cacheMaximumSize)
+				.refreshAfterWrite(positiveTtlSeconds, TimeUnit.SECONDS)
+				.expireAfterWrite(staleTtlSeconds, TimeUnit.SECONDS)
+				.recordStats()
+				.build(CacheLoader.asyncReloading(new CacheLoader<ValidationKey, Validation>() {
+					@Override
+					public Validation load(ValidationKey key) {
+						return lookup(key).join();
+					}
+				}, refreshExecutor));
 	}
 
+	/**
+	 * Checks the packet user and installation against the TiX API. Results are cached by user, installation and
+	 * public key: positive results are refreshed in the background once stale, negative ones are dropped after their
+	 * own (usually shorter) TTL.
+	 */
 	public boolean validUserAndInstallation(TixDataPacket packet) {
 		try {
-			return validUser(packet) && validInstallation(packet);
-		} catch (HttpClientErrorException hcee) {
+			return validUserAndInstallationAsync(packet).join();
+		} catch (CompletionException ce) {
+			if (ce.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ce.getCause();
+			}
+			throw ce;
+		}
+	}
+
+	/**
+	 * Asynchronous version of {@link #validUserAndInstallation(TixDataPacket)}. Concurrent calls for the same key
+	 * share a single in-flight lookup, and the user and installation requests are issued in parallel.
+	 */
+	public CompletableFuture<Boolean> validUserAndInstallationAsync(TixDataPacket packet) {
+		long start = System.nanoTime();
+		return validate(packet).whenComplete((valid, t) -> latency.record(System.nanoTime() - start));
+	}
+
+	private CompletableFuture<Boolean> validate(TixDataPacket packet) {
+		ValidationKey key = new ValidationKey(packet.getUserId(), packet.getInstallationId(), packet.getPublicKey());
+		Validation validation = validations.getIfPresent(key);
+		if (validation != null) {
+			if (validation.isValid() || System.nanoTime() - validation.getLoadedAt() <= negativeTtlNanos) {
+				return CompletableFuture.completedFuture(validation.isValid());
+			}
+			validations.invalidate(key);
+		}
+		return lookup(key).thenApply(lookedUp -> {
+			validations.put(key, lookedUp);
+			return lookedUp.isValid();
+		});
+	}
+
+	/**
+	 * Fetches the state of every given user, together with all their installations, in parallel. Meant to warm the
+	 * validation cache with the installations that are known to report.
+	 */
+	public CompletableFuture<Void> prefetch(Collection<Long> userIds) {
+		logger.info("Prefetching {} users", userIds.size());
+		return CompletableFuture.allOf(userIds.stream()
+				.map(userId -> userLookup(userId).exceptionally(t -> {
+					logger.warn("Could not prefetch user {}", userId, t);
+					return null;
+				}))
+				.toArray(CompletableFuture[]::new));
+	}
+
+	private CompletableFuture<Validation> lookup(ValidationKey key) {
+		CompletableFuture<Validation> lookup = new CompletableFuture<>();
+		CompletableFuture<Validation> existing = inFlight.putIfAbsent(key, lookup);
+		if (existing != null) {
+			return existing;
+		}
+		userLookup(key.getUserId())
+				.thenCompose(user -> {
+					if (!user.isEnabled()) {
+						return CompletableFuture.completedFuture(false);
+					}
+					Optional<byte[]> installationPk = user.publicKeyOf(key.getInstallationId());
+					if (installationPk.isPresent()) {
+						return CompletableFuture.completedFuture(publicKeyMatch(installationPk.get(), key.getPublicKey()));
+					}
+					return CompletableFuture.supplyAsync(() -> validInstallation(key), lookupExecutor)
+							.exceptionally(this::discardNotFound);
+				})
+				.whenComplete((valid, t) -> {
+					inFlight.remove(key, lookup);
+					if (t != null) {
+						lookup.completeExceptionally(t instanceof CompletionException ? t.getCause() : t);
+					} else {
+						lookup.complete(new Validation(valid, System.nanoTime()));
+					}
+				});
+		return lookup;
+	}
+
+	/**
+	 * Resolves a user and all of its installations with two parallel requests. Every listed installation is added to
+	 * the validation cache, so the rest of the user's installations validate without further requests.
+	 */
+	private CompletableFuture<UserState> userLookup(long userId) {
+		UserState cached = users.getIfPresent(userId);
+		if (cached != null) {
+			return CompletableFuture.completedFuture(cached);
+		}
+		CompletableFuture<UserState> lookup = new CompletableFuture<>();
+		CompletableFuture<UserState> existing = userLookups.putIfAbsent(userId, lookup);
+		if (existing != null) {
+			return existing;
+		}
+		CompletableFuture<Boolean> user = CompletableFuture.supplyAsync(() -> validUser(userId), lookupExecutor)
+				.exceptionally(this::discardNotFound);
+		CompletableFuture<Optional<List<TixInstallation>>> installations = CompletableFuture
+				.supplyAsync(() -> Optional.of(userInstallations(userId)), lookupExecutor)
+				.exceptionally(t -> {
+					logger.debug("Installations of user {} are not available, falling back to single lookups", userId, t);
+					return Optional.empty();
+				});
+		user.thenCombine(installations, UserState::new)
+				.whenComplete((state, t) -> {
+					userLookups.remove(userId, lookup);
+					if (t != null) {
+						lookup.completeExceptionally(t instanceof CompletionException ? t.getCause() : t);
+					} else {
+						if (state.isEnabled()) {
+							users.put(userId, state);
+							long now = System.nanoTime();
+							state.getPublicKeys().forEach((installationId, publicKey) ->
+									validations.put(new ValidationKey(userId, installationId, publicKey), new Validation(true, now)));
+						}
+						lookup.complete(state);
+					}
+				});
+		return lookup;
+	}
+
+	private boolean discardNotFound(Throwable t) {
+		Throwable cause = t instanceof CompletionException ? t.getCause() : t;
+		if (cause instanceof HttpClientErrorException) {
+			HttpClientErrorException hcee = (HttpClientErrorException) cause;
 			if (hcee.getStatusCode() == HttpStatus.NOT_FOUND) {
 				logger.info("Discarding 404 silently");
 				return false;
-			} else {
-				logger.error("Client Error caught", hcee);
-				throw hcee;
 			}
+			logger.error("Client Error caught", hcee);
 		}
+		throw t instanceof CompletionException ? (CompletionException) t : new CompletionException(t);
 	}
 
-	private boolean validUser(TixDataPacket packet) {
+	private boolean validUser(long userId) {
 		HttpEntity<String> request = new HttpEntity<>(this.headers);
-		ResponseEntity<TixUser> userResponseEntity = apiClient.exchange(format(USER_TEMPLATE, apiPath, packet.getUserId()), HttpMethod.GET, request, TixUser.class);
+		ResponseEntity<TixUser> userResponseEntity = apiClient.exchange(format(USER_TEMPLATE, apiPath, userId), HttpMethod.GET, request, TixUser.class);
 		boolean okResponseStatus = userResponseEntity.getStatusCode() == HttpStatus.OK;
 		boolean userEnabled = userResponseEntity.getBody().isEnabled();
 		if (!okResponseStatus) {
@@ -75,11 +294,21 @@ public class TixPacketValidator {
 		return  okResponseStatus && userEnabled;
 	}
 
-	private boolean validInstallation(TixDataPacket packet) {
+	private List<TixInstallation> userInstallations(long userId) {
+		HttpEntity<String> request = new HttpEntity<>(this.headers);
+		ResponseEntity<List<TixInstallation>> installationsResponseEntity =
+				apiClient.exchange(format(USER_INSTALLATIONS_TEMPLATE, apiPath, userId), HttpMethod.GET, request,
+						new ParameterizedTypeReference<List<TixInstallation>>() {});
+		if (installationsResponseEntity.getStatusCode() != HttpStatus.OK || installationsResponseEntity.getBody() == null) {
+			throw new IllegalStateException(format("Unexpected installations response for user %d", userId));
+		}
+		return installationsResponseEntity.getBody();
+	}
+
+	private boolean validInstallation(ValidationKey key) {
 		HttpEntity<String> request = new HttpEntity<>(this.headers);
 		ResponseEntity<TixInstallation> installationResponseEntity =
-				apiClient.exchange(format(INSTALLATION_TEMPLATE, apiPath, packet.getUserId(), packet.getInstallationId()), HttpMethod.GET, request, TixInstallation.class);
-		String packetPk = TixCoreUtils.ENCODER.apply(packet.getPublicKey());
+				apiClient.exchange(format(INSTALLATION_TEMPLATE, apiPath, key.getUserId(), key.getInstallationId()), HttpMethod.GET, request, TixInstallation.class);
 		boolean okResponseStatus = installationResponseEntity.getStatusCode() == HttpStatus.OK;
 		if (!okResponseStatus) {
 			logger.warn("Response status is not 200 OK");
@@ -89,14 +318,46 @@ public class TixPacketValidator {
 			logger.warn("Response body is empty!");
 			return false;
 		}
-		boolean publicKeyMatch = !Strings.isNullOrEmpty(installationResponseEntity.getBody().getPublicKey()) &&
-				installationResponseEntity.getBody().getPublicKey().equals(packetPk);
+		return publicKeyMatch(decodePublicKey(installationResponseEntity.getBody().getPublicKey()), key.getPublicKey());
+	}
+
+	/** Compares the raw key bytes, so packet keys never need to be Base64 encoded */
+	private boolean publicKeyMatch(byte[] installationPk, byte[] packetPk) {
+		boolean publicKeyMatch = installationPk.length > 0 && Arrays.equals(installationPk, packetPk);
 		if (!publicKeyMatch) {
 			logger.warn(format("Installation Public Key do not match with packet Public Key.\nInstallation Public Key %s\nPacket Public Key %s",
-					installationResponseEntity.getBody().getPublicKey(), packetPk));
-			return false;
+					TixCoreUtils.ENCODER.apply(installationPk), TixCoreUtils.ENCODER.apply(packetPk)));
+		}
+		return publicKeyMatch;
+	}
+
+	private static byte[] decodePublicKey(String publicKey) {
+		if (Strings.isNullOrEmpty(publicKey)) {
+			return new byte[0];
 		}
-		return true;
+		try {
+			return Base64.getMimeDecoder().decode(publicKey);
+		} catch (IllegalArgumentException iae) {
+			return new byte[0];
+		}
+	}
+
+	public CacheStats getCacheStats() {
+		return validations.stats();
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		CacheStats stats = getCacheStats();
+		List<Metric<?>> metrics = new ArrayList<>();
+		metrics.add(new Metric<>("tix-api.validation.cache.size", validations.size()));
+		metrics.add(new Metric<>("tix-api.validation.cache.hits", stats.hitCount()));
+		metrics.add(new Metric<>("tix-api.validation.cache.misses", stats.missCount()));
+		metrics.add(new Metric<>("tix-api.validation.cache.loads", stats.loadCount()));
+		metrics.add(new Metric<>("tix-api.validation.cache.load-failures", stats.loadExceptionCount()));
+		metrics.add(new Metric<>("tix-api.validation.cache.evictions", stats.evictionCount()));
+		metrics.addAll(latency.toMetrics("tix-api.validation.latency"));
+		return metrics;
 	}
 
 	public RestTemplate getApiClient() {
@@ -106,4 +367,93 @@ public class TixPacketValidator {
 	public String getApiPath() {
 		return apiPath;
 	}
+
+	private static class ValidationKey {
+		private final long userId;
+		private final long installationId;
+		private final byte[] publicKey;
+
+		ValidationKey(long userId, long installationId, byte[] publicKey) {
+			this.userId = userId;
+			this.installationId = installationId;
+			this.publicKey = publicKey;
+		}
+
+		long getUserId() {
+			return userId;
+		}
+
+		long getInstallationId() {
+			return installationId;
+		}
+
+		byte[] getPublicKey() {
+			return publicKey;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+
+			if (!(o instanceof ValidationKey)) return false;
+
+			ValidationKey that = (ValidationKey) o;
+
+			return new EqualsBuilder()
+					.append(getUserId(), that.getUserId())
+					.append(getInstallationId(), that.getInstallationId())
+					.append(getPublicKey(), that.getPublicKey())
+					.isEquals();
+		}
+
+		@Override
+		public int hashCode() {
+			return new HashCodeBuilder(17, 37)
+					.append(getUserId())
+					.append(getInstallationId())
+					.append(getPublicKey())
+					.toHashCode();
+		}
+	}
+
+	private static class UserState {
+		private final boolean enabled;
+		private final Map<Long, byte[]> publicKeys;
+
+		UserState(boolean enabled, Optional<List<TixInstallation>> installations) {
+			this.enabled = enabled;
+			this.publicKeys = new HashMap<>();
+			installations.ifPresent(list -> list.forEach(installation -> publicKeys.put(installation.getId(), decodePublicKey(installation.getPublicKey()))));
+		}
+
+		boolean isEnabled() {
+			return enabled;
+		}
+
+		Map<Long, byte[]> getPublicKeys() {
+			return publicKeys;
+		}
+
+		Optional<byte[]> publicKeyOf(long installationId) {
+			return Optional.ofNullable(publicKeys.get(installationId));
+		}
+	}
+
+	private static class Validation {
+		private final boolean valid;
+		private final long loadedAt;
+
+		Validation(boolean valid, long loadedAt) {
+			this.valid = valid;
+			this.loadedAt = loadedAt;
+		}
+
+		boolean isValid() {
+			return valid;
+		}
+
+		long getLoadedAt() {
+			return loadedAt;
+		}
+	}
 }
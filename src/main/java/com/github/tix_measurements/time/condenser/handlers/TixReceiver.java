@@ -4,70 +4,250 @@ import com.github.tix_measurements.time.condenser.sender.RabbitSubmitter;
 import com.github.tix_measurements.time.condenser.sender.SubmittablePacketSet;
 import com.github.tix_measurements.time.condenser.store.MeasurementStore;
 import com.github.tix_measurements.time.core.data.TixDataPacket;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
 import org.springframework.context.ApplicationListener;
 import org.springframework.context.event.ContextRefreshedEvent;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
-import java.util.Optional;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
+/**
+ * Runs received packets through signature verification, user and installation validation, and storage, handing
+ * ready packet sets to the submitter. Storage runs on its own pool behind a bounded queue; when that queue is full
+ * the thread completing the checks stores the batch itself, which slows intake down to what the store keeps up with.
+ * The depth of every stage is published as a metric.
+ */
 @Component
-public class TixReceiver implements ApplicationListener<ContextRefreshedEvent> {
+public class TixReceiver implements ApplicationListener<ContextRefreshedEvent>, PublicMetrics, DisposableBean {
+	public static final int DEFAULT_STORE_THREADS = 4;
+	public static final int DEFAULT_STORE_QUEUE_CAPACITY = 64;
+
 	private final Logger logger = LoggerFactory.getLogger(this.getClass());
 	private final MeasurementStore measurementStore;
 	private final TixPacketValidator packetValidator;
+	private final TixSignatureVerifier signatureVerifier;
 	private final RabbitSubmitter submitter;
+	private final BacklogDrain backlogDrain;
+	private final int storeQueueCapacity;
+	private final ThreadPoolExecutor storeStage;
+	/** Packets waiting on their signature check */
+	private final AtomicInteger verifying;
+	/** Packets with a valid signature waiting on their user and installation check */
+	private final AtomicInteger validating;
+	/** Stores run on the checking thread because the store queue was full */
+	private final LongAdder storeOverflows;
+
+	public TixReceiver(MeasurementStore measurementStore,
+		               TixPacketValidator packetValidator,
+		               TixSignatureVerifier signatureVerifier,
+		               RabbitSubmitter submitter,
+		               BacklogDrain backlogDrain) {
+		this(measurementStore, packetValidator, signatureVerifier, submitter, backlogDrain,
+				DEFAULT_STORE_THREADS, DEFAULT_STORE_QUEUE_CAPACITY);
+	}
 
+	@Autowired
 	public TixReceiver(MeasurementStore measurementStore,
 		               TixPacketValidator packetValidator,
-		               RabbitSubmitter submitter) {
+		               TixSignatureVerifier signatureVerifier,
+		               RabbitSubmitter submitter,
+		               BacklogDrain backlogDrain,
+		               @Value("${tix-condenser.reports.store.threads}") int storeThreads,
+		               @Value("${tix-condenser.reports.store.queue-capacity}") int storeQueueCapacity) {
 		logger.info("Creating TixReceiver");
+		logger.trace("storeThreads={} storeQueueCapacity={}", storeThreads, storeQueueCapacity);
 		try {
 			assertThat(measurementStore).isNotNull();
 			assertThat(packetValidator).isNotNull();
+			assertThat(signatureVerifier).isNotNull();
 			assertThat(submitter).isNotNull();
+			assertThat(backlogDrain).isNotNull();
+			assertThat(storeThreads).isPositive();
+			assertThat(storeQueueCapacity).isPositive();
 		} catch (AssertionError ae) {
 			throw new IllegalArgumentException(ae);
 		}
 		this.measurementStore = measurementStore;
 		this.packetValidator = packetValidator;
+		this.signatureVerifier = signatureVerifier;
 		this.submitter = submitter;
+		this.backlogDrain = backlogDrain;
+		this.storeQueueCapacity = storeQueueCapacity;
+		this.storeOverflows = new LongAdder();
+		this.storeStage = new ThreadPoolExecutor(storeThreads, storeThreads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(storeQueueCapacity),
+				new ThreadFactoryBuilder()
+						.setNameFormat("measurement-store-%d")
+						.setDaemon(true)
+						.build(),
+				(task, executor) -> {
+					if (executor.isShutdown()) {
+						throw new RejectedExecutionException("Measurement store stage is shut down");
+					}
+					storeOverflows.increment();
+					task.run();
+				});
+		this.verifying = new AtomicInteger();
+		this.validating = new AtomicInteger();
 	}
 
+	/** Warms the validation caches and drains the stored backlog in the background, without holding back consumption */
 	@Override
 	public void onApplicationEvent(ContextRefreshedEvent arg0) {
+		packetValidator.prefetch(measurementStore.userIds());
+		backlogDrain.start();
+	}
+
+	public void receiveMessage(TixDataPacket packet) throws IOException {
+		join(receiveMessageAsync(packet));
+	}
+
+	/** Receives a batch of packets, returning once the valid ones are stored */
+	public void receiveBatch(List<TixDataPacket> packets) throws IOException {
+		join(receiveBatchAsync(packets));
+	}
+
+	private static void join(CompletableFuture<Void> future) throws IOException {
 		try {
-			for (SubmittablePacketSet measures: measurementStore.packetsToSend()) {
-				submitter.send(measures);
+			future.join();
+		} catch (CompletionException ce) {
+			if (ce.getCause() instanceof UncheckedIOException) {
+				throw ((UncheckedIOException) ce.getCause()).getCause();
 			}
-		} catch (Exception e) {
-			// TODO: Do something
+			if (ce.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ce.getCause();
+			}
+			throw ce;
 		}
 	}
 
-	public void receiveMessage(TixDataPacket packet) throws IOException {
-		if (!packet.isValid()) {
-			logger.warn("Invalid packet");
-			logger.debug("packet={}", packet);
-			return;
-		}
+	/**
+	 * Verifies the packet signature and, if it holds, validates the user and installation. Once both complete the
+	 * packet is stored and any ready packet set is handed to the submitter, without waiting for its confirmation.
+	 */
+	public CompletableFuture<Void> receiveMessageAsync(TixDataPacket packet) {
+		return check(packet).thenAcceptAsync(valid -> {
+			if (!valid) {
+				return;
+			}
 
-		if (!packetValidator.validUserAndInstallation(packet)) {
-			logger.warn("Invalid user or installation");
+			logger.info("New valid packet received");
 			logger.debug("packet={}", packet);
-			return;
-		}
 
-		logger.info("New valid packet received");
-		logger.debug("packet={}", packet);
-		
-		Optional<SubmittablePacketSet> toSend = measurementStore.storePacket(packet);
-		if (toSend.isPresent()) {
-			submitter.send(toSend.get());
-		}
+			try {
+				measurementStore.storePacket(packet).ifPresent(submitter::sendAsync);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, storeStage);
+	}
+
+	/**
+	 * Verifies and validates a batch of packets together, then stores the valid ones with a single call per
+	 * installation. An installation that cannot be stored does not hold back the others; the batch then completes
+	 * exceptionally with a {@link BatchStoreException} naming the packets that failed. Ready packet sets are handed to
+	 * the submitter without waiting for their confirmation.
+	 */
+	public CompletableFuture<Void> receiveBatchAsync(List<TixDataPacket> packets) {
+		List<CompletableFuture<Boolean>> checks = packets.stream()
+				.map(this::check)
+				.collect(Collectors.toList());
+
+		return CompletableFuture.allOf(checks.toArray(new CompletableFuture<?>[0])).thenAcceptAsync(ignored -> {
+			Map<Long, List<TixDataPacket>> byInstallation = new LinkedHashMap<>();
+			for (int i = 0; i < packets.size(); i++) {
+				if (checks.get(i).join()) {
+					byInstallation.computeIfAbsent(packets.get(i).getInstallationId(), installationId -> new ArrayList<>()).add(packets.get(i));
+				}
+			}
+			logger.info("New batch received, {} valid packets of {} installations",
+					byInstallation.values().stream().mapToInt(List::size).sum(), byInstallation.size());
+
+			List<SubmittablePacketSet> toSend = new ArrayList<>();
+			List<TixDataPacket> failed = new ArrayList<>();
+			IOException failure = null;
+			for (Map.Entry<Long, List<TixDataPacket>> installation: byInstallation.entrySet()) {
+				try {
+					measurementStore.storePackets(installation.getValue()).ifPresent(toSend::add);
+				} catch (IOException e) {
+					logger.error("Installation {} could not store {} packets", installation.getKey(), installation.getValue().size(), e);
+					failed.addAll(installation.getValue());
+					if (failure == null) {
+						failure = e;
+					} else {
+						failure.addSuppressed(e);
+					}
+				}
+			}
+			toSend.forEach(submitter::sendAsync);
+			if (failure != null) {
+				throw new UncheckedIOException(new BatchStoreException(failed, failure));
+			}
+		}, storeStage);
+	}
+
+	/** Verifies the packet signature and, if it holds, validates the user and installation */
+	private CompletableFuture<Boolean> check(TixDataPacket packet) {
+		verifying.incrementAndGet();
+		return signatureVerifier.verifyAsync(packet)
+				.whenComplete((validSignature, error) -> verifying.decrementAndGet())
+				.thenCompose(validSignature -> {
+					if (!validSignature) {
+						logger.warn("Invalid packet");
+						logger.debug("packet={}", packet);
+						return CompletableFuture.completedFuture(false);
+					}
+					validating.incrementAndGet();
+					return packetValidator.validUserAndInstallationAsync(packet)
+							.whenComplete((valid, error) -> validating.decrementAndGet())
+							.thenApply(valid -> {
+								if (!valid) {
+									logger.warn("Invalid user or installation");
+									logger.debug("packet={}", packet);
+								}
+								return valid;
+							});
+				});
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>();
+		metrics.add(new Metric<>("pipeline.verify.depth", verifying.get()));
+		metrics.add(new Metric<>("pipeline.validate.depth", validating.get()));
+		metrics.add(new Metric<>("pipeline.store.depth", storeStage.getQueue().size()));
+		metrics.add(new Metric<>("pipeline.store.capacity", storeQueueCapacity));
+		metrics.add(new Metric<>("pipeline.store.active", storeStage.getActiveCount()));
+		metrics.add(new Metric<>("pipeline.store.overflows", storeOverflows.sum()));
+		return metrics;
+	}
+
+	@Override
+	public void destroy() {
+		storeStage.shutdown();
 	}
 }
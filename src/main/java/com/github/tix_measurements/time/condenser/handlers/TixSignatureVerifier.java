@@ -0,0 +1,207 @@
+package com.github.tix_measurements.time.condenser.handlers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import com.github.tix_measurements.time.condenser.metrics.LatencyHistogram;
+import com.github.tix_measurements.time.core.data.TixDataPacket;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Verifies packet signatures on a dedicated pool sized to the available cores. Decoded public keys are cached per
+ * installation, so a key is only parsed again when the installation starts reporting with a different one.
+ * Packets whose key cannot be used with the configured algorithms are checked with {@link TixDataPacket#isValid()}
+ * instead, which stays the authoritative check, and the misconfiguration is logged once per installation. Signatures
+ * that simply do not verify are rejected outright, so forged packets cost a single verification each.
+ */
+@Component
+public class TixSignatureVerifier implements PublicMetrics, DisposableBean {
+	public static final int DEFAULT_THREADS = 0;
+	public static final String DEFAULT_KEY_ALGORITHM = "RSA";
+	public static final String DEFAULT_SIGNATURE_ALGORITHM = "SHA256withRSA";
+	public static final long DEFAULT_CACHE_MAXIMUM_SIZE = 100000L;
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+	private final int threads;
+	private final ExecutorService workers;
+	private final String keyAlgorithm;
+	private final ThreadLocal<Signature> signatures;
+	private final Cache<Long, InstallationKey> keys;
+	/** Installations already warned about only verifying through tix-time-core */
+	private final Cache<Long, Boolean> fallbackWarnings;
+	private final LongAdder verified;
+	private final LongAdder rejected;
+	private final LongAdder fallbacks;
+	private final LongAdder busyNanos;
+	private final LatencyHistogram latency;
+
+	public TixSignatureVerifier() {
+		this(DEFAULT_THREADS, DEFAULT_KEY_ALGORITHM, DEFAULT_SIGNATURE_ALGORITHM, DEFAULT_CACHE_MAXIMUM_SIZE);
+	}
+
+	@Autowired
+	public TixSignatureVerifier(@Value("${tix-condenser.verification.threads}") int threads,
+	                            @Value("${tix-condenser.verification.key-algorithm}") String keyAlgorithm,
+	                            @Value("${tix-condenser.verification.signature-algorithm}") String signatureAlgorithm,
+	                            @Value("${tix-condenser.verification.cache-maximum-size}") long cacheMaximumSize) {
+		logger.info("Creating TixSignatureVerifier");
+		logger.trace("threads={} keyAlgorithm={} signatureAlgorithm={} cacheMaximumSize={}",
+				threads, keyAlgorithm, signatureAlgorithm, cacheMaximumSize);
+		try {
+			assertThat(threads).isNotNegative();
+			assertThat(keyAlgorithm).isNotNull().isNotEmpty();
+			assertThat(signatureAlgorithm).isNotNull().isNotEmpty();
+			assertThat(cacheMaximumSize).isPositive();
+			KeyFactory.getInstance(keyAlgorithm);
+			Signature.getInstance(signatureAlgorithm);
+		} catch (AssertionError | GeneralSecurityException e) {
+			throw new IllegalArgumentException(e);
+		}
+		this.threads = threads == 0 ? Runtime.getRuntime().availableProcessors() : threads;
+		this.workers = Executors.newFixedThreadPool(this.threads, new ThreadFactoryBuilder()
+				.setNameFormat("signature-verifier-%d")
+				.setDaemon(true)
+				.build());
+		this.keyAlgorithm = keyAlgorithm;
+		this.signatures = ThreadLocal.withInitial(() -> {
+			try {
+				return Signature.getInstance(signatureAlgorithm);
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		this.keys = CacheBuilder.newBuilder()
+				.maximumSize(cacheMaximumSize)
+				.build();
+		this.fallbackWarnings = CacheBuilder.newBuilder()
+				.maximumSize(cacheMaximumSize)
+				.build();
+		this.verified = new LongAdder();
+		this.rejected = new LongAdder();
+		this.fallbacks = new LongAdder();
+		this.busyNanos = new LongAdder();
+		this.latency = new LatencyHistogram();
+	}
+
+	public CompletableFuture<Boolean> verifyAsync(TixDataPacket packet) {
+		return CompletableFuture.supplyAsync(() -> verify(packet), workers);
+	}
+
+	public boolean verify(TixDataPacket packet) {
+		long start = System.nanoTime();
+		try {
+			Optional<Boolean> verifiedWithCachedKey = verifyWithCachedKey(packet);
+			boolean valid;
+			if (verifiedWithCachedKey.isPresent()) {
+				valid = verifiedWithCachedKey.get();
+			} else {
+				fallbacks.increment();
+				valid = packet.isValid();
+				if (valid && fallbackWarnings.asMap().putIfAbsent(packet.getInstallationId(), Boolean.TRUE) == null) {
+					logger.warn("Installation {} signature only verified through tix-time-core, check the configured algorithms",
+							packet.getInstallationId());
+				}
+			}
+			if (valid) {
+				verified.increment();
+			} else {
+				rejected.increment();
+			}
+			return valid;
+		} finally {
+			long elapsed = System.nanoTime() - start;
+			busyNanos.add(elapsed);
+			latency.record(elapsed);
+		}
+	}
+
+	/** Verifies with the cached key, or returns empty if the key cannot be used with the configured algorithms */
+	private Optional<Boolean> verifyWithCachedKey(TixDataPacket packet) {
+		Signature signature;
+		try {
+			InstallationKey key = keys.getIfPresent(packet.getInstallationId());
+			if (key == null || !key.matches(packet.getPublicKey())) {
+				key = new InstallationKey(packet.getPublicKey(),
+						KeyFactory.getInstance(keyAlgorithm).generatePublic(new X509EncodedKeySpec(packet.getPublicKey())));
+				keys.put(packet.getInstallationId(), key);
+			}
+			signature = signatures.get();
+			signature.initVerify(key.getPublicKey());
+		} catch (GeneralSecurityException | RuntimeException e) {
+			logger.debug("Installation {} key could not be used with the configured algorithms", packet.getInstallationId(), e);
+			return Optional.empty();
+		}
+		try {
+			signature.update(packet.getMessage());
+			return Optional.of(signature.verify(packet.getSignature()));
+		} catch (SignatureException | RuntimeException e) {
+			logger.debug("Installation {} signature is malformed", packet.getInstallationId(), e);
+			return Optional.of(false);
+		}
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		long verifications = verified.sum() + rejected.sum();
+		double busySeconds = busyNanos.sum() / (double) TimeUnit.SECONDS.toNanos(1);
+		List<Metric<?>> metrics = new ArrayList<>();
+		metrics.add(new Metric<>("signature.threads", threads));
+		metrics.add(new Metric<>("signature.verified", verified.sum()));
+		metrics.add(new Metric<>("signature.rejected", rejected.sum()));
+		metrics.add(new Metric<>("signature.fallbacks", fallbacks.sum()));
+		metrics.add(new Metric<>("signature.cached-keys", keys.size()));
+		metrics.add(new Metric<>("signature.per-thread-second", busySeconds == 0 ? 0.0 : verifications / busySeconds));
+		metrics.addAll(latency.toMetrics("signature.latency"));
+		return metrics;
+	}
+
+	@Override
+	public void destroy() {
+		workers.shutdown();
+	}
+
+	private static class InstallationKey {
+		private final byte[] encoded;
+		private final PublicKey publicKey;
+
+		InstallationKey(byte[] encoded, PublicKey publicKey) {
+			this.encoded = encoded.clone();
+			this.publicKey = publicKey;
+		}
+
+		boolean matches(byte[] encoded) {
+			return Arrays.equals(this.encoded, encoded);
+		}
+
+		PublicKey getPublicKey() {
+			return publicKey;
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package com.github.tix_measurements.time.condenser.metrics;
+
+import static java.lang.String.format;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.boot.actuate.metrics.Metric;
+
+/** Lock-free latency histogram with fixed, roughly exponential, millisecond buckets */
+public class LatencyHistogram {
+	private static final long[] DEFAULT_BUCKET_UPPER_BOUNDS_MILLIS = {
+			1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, Long.MAX_VALUE
+	};
+	/** Buckets for the age of measurements, which wait at least the twenty minutes or so a packet set spans */
+	private static final long[] AGE_BUCKET_UPPER_BOUNDS_MILLIS = {
+			TimeUnit.MINUTES.toMillis(1), TimeUnit.MINUTES.toMillis(5), TimeUnit.MINUTES.toMillis(10),
+			TimeUnit.MINUTES.toMillis(20), TimeUnit.MINUTES.toMillis(30), TimeUnit.MINUTES.toMillis(45),
+			TimeUnit.HOURS.toMillis(1), TimeUnit.HOURS.toMillis(2), TimeUnit.HOURS.toMillis(6),
+			TimeUnit.HOURS.toMillis(12), TimeUnit.DAYS.toMillis(1), TimeUnit.DAYS.toMillis(7), Long.MAX_VALUE
+	};
+
+	private final long[] bucketUpperBoundsMillis;
+	private final LongAdder[] buckets;
+	private final LongAdder count;
+	private final LongAdder totalNanos;
+	private final LongAccumulator maxNanos;
+
+	public LatencyHistogram() {
+		this(DEFAULT_BUCKET_UPPER_BOUNDS_MILLIS);
+	}
+
+	private LatencyHistogram(long[] bucketUpperBoundsMillis) {
+		this.bucketUpperBoundsMillis = bucketUpperBoundsMillis;
+		this.buckets = new LongAdder[bucketUpperBoundsMillis.length];
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new LongAdder();
+		}
+		this.count = new LongAdder();
+		this.totalNanos = new LongAdder();
+		this.maxNanos = new LongAccumulator(Math::max, 0L);
+	}
+
+	/** Histogram bucketed for ages ranging from minutes to days rather than for latencies */
+	public static LatencyHistogram forAges() {
+		return new LatencyHistogram(AGE_BUCKET_UPPER_BOUNDS_MILLIS);
+	}
+
+	public void record(long nanos) {
+		long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+		int bucket = 0;
+		while (millis > bucketUpperBoundsMillis[bucket]) {
+			bucket++;
+		}
+		buckets[bucket].increment();
+		count.increment();
+		totalNanos.add(nanos);
+		maxNanos.accumulate(nanos);
+	}
+
+	public long count() {
+		return count.sum();
+	}
+
+	public double meanMillis() {
+		long count = count();
+		return count == 0 ? 0.0 : totalNanos.sum() / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	public double maxMillis() {
+		return maxNanos.get() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	/** Upper bound, in milliseconds, of the bucket holding the given quantile, capped at the maximum recorded */
+	public long quantileMillis(double quantile) {
+		long[] counts = new long[buckets.length];
+		long total = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			counts[i] = buckets[i].sum();
+			total += counts[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(quantile * total);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				// Never past the largest value recorded, which a sparse bucket could otherwise overstate by far
+				return Math.min(bucketUpperBoundsMillis[i], (long) Math.ceil(maxMillis()));
+			}
+		}
+		return (long) Math.ceil(maxMillis());
+	}
+
+	public Collection<Metric<?>> toMetrics(String prefix) {
+		List<Metric<?>> metrics = new ArrayList<>();
+		metrics.add(new Metric<>(format("%s.count", prefix), count()));
+		metrics.add(new Metric<>(format("%s.mean-millis", prefix), meanMillis()));
+		metrics.add(new Metric<>(format("%s.p50-millis", prefix), quantileMillis(0.50)));
+		metrics.add(new Metric<>(format("%s.p99-millis", prefix), quantileMillis(0.99)));
+		metrics.add(new Metric<>(format("%s.max-millis", prefix), maxMillis()));
+		return metrics;
+	}
+}
@@ -0,0 +1,114 @@
+package com.github.tix_measurements.time.condenser.sender;
+
+import static java.lang.String.format;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.common.io.ByteStreams;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+
+/**
+ * Compression applied to the payload of submitted packet sets, as named in
+ * {@code tix-condenser.queues.sending.compression}. Compressed messages carry the matching content encoding, so
+ * consumers can tell them apart from plain ones.
+ */
+public enum PayloadCompression {
+	NONE("none", null) {
+		@Override
+		public ByteBuf compress(ByteBuf payload, ByteBufAllocator allocator) {
+			return payload.retain();
+		}
+
+		@Override
+		public byte[] decompress(byte[] payload) {
+			return payload;
+		}
+	},
+	/** Overlapping windows and Base64 messages make the JSON payload highly redundant */
+	GZIP("gzip", "gzip") {
+		@Override
+		public ByteBuf compress(ByteBuf payload, ByteBufAllocator allocator) throws IOException {
+			ByteBuf compressed = allocator.heapBuffer(payload.readableBytes() / 4 + 64);
+			try (GZIPOutputStream out = new GZIPOutputStream(new ByteBufOutputStream(compressed), BUFFER_SIZE)) {
+				payload.getBytes(payload.readerIndex(), out, payload.readableBytes());
+			} catch (IOException | RuntimeException e) {
+				compressed.release();
+				throw e;
+			}
+			return compressed;
+		}
+
+		@Override
+		public byte[] decompress(byte[] payload) throws IOException {
+			try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(payload), BUFFER_SIZE)) {
+				return ByteStreams.toByteArray(in);
+			}
+		}
+	};
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final String configName;
+	private final String contentEncoding;
+
+	PayloadCompression(String configName, String contentEncoding) {
+		this.configName = configName;
+		this.contentEncoding = contentEncoding;
+	}
+
+	public String getConfigName() {
+		return configName;
+	}
+
+	/** Content encoding flagging a message compressed this way, empty when it is sent as is */
+	public Optional<String> getContentEncoding() {
+		return Optional.ofNullable(contentEncoding);
+	}
+
+	/**
+	 * Compresses the readable bytes of a buffer into one taken from the allocator, which may be the payload itself,
+	 * retained. Either way the caller owns, and has to release, the returned buffer.
+	 */
+	public abstract ByteBuf compress(ByteBuf payload, ByteBufAllocator allocator) throws IOException;
+
+	public byte[] compress(byte[] payload) throws IOException {
+		ByteBuf compressed = compress(Unpooled.wrappedBuffer(payload), UnpooledByteBufAllocator.DEFAULT);
+		try {
+			byte[] bytes = new byte[compressed.readableBytes()];
+			compressed.readBytes(bytes);
+			return bytes;
+		} finally {
+			compressed.release();
+		}
+	}
+
+	public abstract byte[] decompress(byte[] payload) throws IOException;
+
+	public static PayloadCompression fromConfigName(String configName) {
+		return Arrays.stream(values())
+				.filter(compression -> compression.configName.equalsIgnoreCase(configName))
+				.findFirst()
+				.orElseThrow(() -> new IllegalArgumentException(format("Unknown payload compression %s", configName)));
+	}
+
+	/** Compression matching the content encoding of a message, which may be absent */
+	public static PayloadCompression fromContentEncoding(String contentEncoding) {
+		if (contentEncoding == null || contentEncoding.isEmpty()) {
+			return NONE;
+		}
+		return Arrays.stream(values())
+				.filter(compression -> contentEncoding.equalsIgnoreCase(compression.contentEncoding))
+				.findFirst()
+				.orElseThrow(() -> new IllegalArgumentException(format("Unknown content encoding %s", contentEncoding)));
+	}
+}
@@ -1,37 +1,473 @@
 package com.github.tix_measurements.time.condenser.sender;
 
+import static org.assertj.core.api.Assertions.assertThat;
+
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.amqp.core.Message;
 import org.springframework.amqp.core.MessageProperties;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.amqp.rabbit.support.CorrelationData;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
 import org.springframework.stereotype.Component;
 
+import com.github.tix_measurements.time.condenser.metrics.LatencyHistogram;
 import com.github.tix_measurements.time.condenser.utils.jackson.TixPacketSerDe;
+import com.github.tix_measurements.time.core.data.TixDataPacket;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.PooledByteBufAllocator;
 
+/**
+ * Publishes packet sets with publisher confirms. A set is only reported as submitted, and so deleted from the store,
+ * once the broker confirms it. Nacked or unconfirmed sets are published again, up to a number of attempts, and the
+ * amount of unconfirmed messages is bounded, blocking further publishing until confirms come back.
+ *
+ * Confirm outcomes are handled on a pool of threads, as they delete from disk and extract, serialize and compress the
+ * sets that follow. Those threads never wait for room in flight: what they publish while it is full is deferred, and
+ * published as soon as a confirm frees room.
+ */
 @Component
-public class RabbitSubmitter {
-    private final RabbitTemplate rabbitTemplate;
-    private final String outQueueName;
+public class RabbitSubmitter implements PublicMetrics, DisposableBean {
+	public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+	public static final long DEFAULT_CONFIRM_TIMEOUT_MILLIS = 10000L;
+	public static final int DEFAULT_MAX_ATTEMPTS = 5;
+	public static final int DEFAULT_CONFIRM_THREADS = 4;
+
+	private static final int INITIAL_PAYLOAD_BYTES = 64 * 1024;
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+	private final RabbitTemplate rabbitTemplate;
+	private final String outQueueName;
 	private final TixPacketSerDe serde;
-	
-    public RabbitSubmitter(RabbitTemplate rabbitTemplate, 
-                           @Value("${tix-condenser.queues.sending.name}") String outQueueName) {
-    	this.rabbitTemplate = rabbitTemplate;
-    	this.outQueueName = outQueueName;
-		this.serde = new TixPacketSerDe();
-    }
-    
-    public void send(SubmittablePacketSet data) throws IOException {
-    	Message message = new Message(serde.serializeList(data.packetsToSubmit()), new MessageProperties());
-    	rabbitTemplate.convertAndSend("", outQueueName, message, new CorrelationData(data.getId()));
-    	
-		Optional<SubmittablePacketSet> next = data.onSubmitSuccess();
-		if (next.isPresent()) {
-			this.send(next.get());
-		}
-    }
+	private final int maxInFlight;
+	private final long confirmTimeoutNanos;
+	private final int maxAttempts;
+	private final PayloadCompression compression;
+	private final ByteBufAllocator allocator;
+	private volatile int expectedPayloadBytes;
+	/** Published messages awaiting their confirm, by correlation id */
+	private final ConcurrentMap<String, PendingSubmit> pending;
+	private final Semaphore inFlight;
+	/** Messages to publish, from confirm handling, once there is room in flight */
+	private final Queue<PendingSubmit> deferred;
+	private final AtomicLong sequence;
+	/** Confirms arrive on the connection thread, which must not wait on disk or on publishing, so they are handled here */
+	private final ExecutorService confirmations;
+	private final ScheduledExecutorService timeouts;
+	private final LongAdder published;
+	private final LongAdder confirmed;
+	private final LongAdder nacked;
+	private final LongAdder timedOut;
+	private final LongAdder deferrals;
+	private final LongAdder failed;
+	private final LongAdder payloadBytes;
+	private final LongAdder compressedBytes;
+	private final LongAdder compressionNanos;
+	private final LatencyHistogram serializeLatency;
+	private final LatencyHistogram publishLatency;
+	private final LatencyHistogram confirmLatency;
+	/**
+	 * Time from the first report of each submitted packet until its set is first published. Consecutive sets of an
+	 * installation overlap by half, so most packets are counted twice, once in each set that carries them.
+	 */
+	private final LatencyHistogram dataAge;
+
+	public RabbitSubmitter(RabbitTemplate rabbitTemplate, String outQueueName) {
+		this(rabbitTemplate, outQueueName, DEFAULT_MAX_IN_FLIGHT, DEFAULT_CONFIRM_TIMEOUT_MILLIS, DEFAULT_MAX_ATTEMPTS,
+				PayloadCompression.NONE.getConfigName(), DEFAULT_CONFIRM_THREADS);
+	}
+
+	@Autowired
+	public RabbitSubmitter(RabbitTemplate rabbitTemplate,
+	                       @Value("${tix-condenser.queues.sending.name}") String outQueueName,
+	                       @Value("${tix-condenser.queues.sending.max-in-flight}") int maxInFlight,
+	                       @Value("${tix-condenser.queues.sending.confirm-timeout-millis}") long confirmTimeoutMillis,
+	                       @Value("${tix-condenser.queues.sending.max-attempts}") int maxAttempts,
+	                       @Value("${tix-condenser.queues.sending.compression}") String compression,
+	                       @Value("${tix-condenser.queues.sending.confirm-threads}") int confirmThreads) {
+		logger.info("Creating RabbitSubmitter");
+		logger.trace("outQueueName={} maxInFlight={} confirmTimeoutMillis={} maxAttempts={} compression={} confirmThreads={}",
+				outQueueName, maxInFlight, confirmTimeoutMillis, maxAttempts, compression, confirmThreads);
+		try {
+			assertThat(rabbitTemplate).isNotNull();
+			assertThat(maxInFlight).isPositive();
+			assertThat(confirmTimeoutMillis).isPositive();
+			assertThat(maxAttempts).isPositive();
+			assertThat(compression).isNotEmpty().isNotNull();
+			assertThat(confirmThreads).isPositive();
+		} catch (AssertionError ae) {
+			throw new IllegalArgumentException(ae);
+		}
+		this.rabbitTemplate = rabbitTemplate;
+		this.outQueueName = outQueueName;
+		this.serde = TixPacketSerDe.shared();
+		this.maxInFlight = maxInFlight;
+		this.confirmTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(confirmTimeoutMillis);
+		this.maxAttempts = maxAttempts;
+		this.compression = PayloadCompression.fromConfigName(compression);
+		this.allocator = PooledByteBufAllocator.DEFAULT;
+		this.expectedPayloadBytes = INITIAL_PAYLOAD_BYTES;
+		this.pending = new ConcurrentHashMap<>();
+		this.inFlight = new Semaphore(maxInFlight);
+		this.deferred = new ConcurrentLinkedQueue<>();
+		this.sequence = new AtomicLong();
+		this.confirmations = Executors.newFixedThreadPool(confirmThreads, new ThreadFactoryBuilder()
+				.setNameFormat("rabbit-confirms-%d")
+				.setDaemon(true)
+				.build());
+		this.timeouts = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+				.setNameFormat("rabbit-confirm-timeouts-%d")
+				.setDaemon(true)
+				.build());
+		this.published = new LongAdder();
+		this.confirmed = new LongAdder();
+		this.nacked = new LongAdder();
+		this.timedOut = new LongAdder();
+		this.deferrals = new LongAdder();
+		this.failed = new LongAdder();
+		this.payloadBytes = new LongAdder();
+		this.compressedBytes = new LongAdder();
+		this.compressionNanos = new LongAdder();
+		this.serializeLatency = new LatencyHistogram();
+		this.publishLatency = new LatencyHistogram();
+		this.confirmLatency = new LatencyHistogram();
+		this.dataAge = LatencyHistogram.forAges();
+		long sweepMillis = Math.max(confirmTimeoutMillis / 4, 1L);
+		this.timeouts.scheduleWithFixedDelay(this::expire, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+		this.rabbitTemplate.setConfirmCallback(this::confirm);
+	}
+
+	/**
+	 * Publishes a packet set and every set that becomes ready after it, completing once the last one is confirmed.
+	 * Following sets are extracted and serialized while earlier ones await their confirm, as many as the installation
+	 * allows in flight; confirms resume the drain from the confirmation pool, so the stack never grows with it.
+	 */
+	public CompletableFuture<Void> sendAsync(SubmittablePacketSet data) {
+		SendProgress progress = new SendProgress();
+		progress.started();
+		pump(data, progress, true);
+		return progress.completion;
+	}
+
+	/**
+	 * Publishes a set and those following it. The pump is counted as outstanding by whoever starts it, before it is
+	 * scheduled, so that the send cannot complete while a pump is still pending or extracting.
+	 */
+	private void pump(SubmittablePacketSet data, SendProgress progress, boolean mayWait) {
+		Optional<SubmittablePacketSet> next = Optional.of(data);
+		while (next.isPresent() && !progress.hasFailed()) {
+			SubmittablePacketSet current = next.get();
+			progress.started();
+			submit(current, mayWait).whenComplete((confirmedNext, error) -> {
+				if (error != null) {
+					progress.failed(error);
+				} else if (confirmedNext.isPresent()) {
+					progress.started();
+					confirmations.execute(() -> pump(confirmedNext.get(), progress, false));
+				}
+				progress.finished();
+			});
+			try {
+				next = current.following();
+			} catch (IOException | RuntimeException e) {
+				logger.error("Could not extract the packet set following {}", current.getId(), e);
+				progress.failed(e);
+				next = Optional.empty();
+			}
+		}
+		progress.finished();
+	}
+
+	/**
+	 * Publishes a single packet set, completing with the one that became ready after it once it is confirmed. Blocks
+	 * while the maximum of unconfirmed messages is reached.
+	 */
+	public CompletableFuture<Optional<SubmittablePacketSet>> submit(SubmittablePacketSet data) {
+		return submit(data, true);
+	}
+
+	private CompletableFuture<Optional<SubmittablePacketSet>> submit(SubmittablePacketSet data, boolean mayWait) {
+		CompletableFuture<Optional<SubmittablePacketSet>> result = new CompletableFuture<>();
+		byte[] body;
+		long[] reportTimestamps;
+		try {
+			List<TixDataPacket> packets = data.packetsToSubmit();
+			reportTimestamps = firstReportTimestamps(packets);
+			body = encode(packets);
+		} catch (IOException | RuntimeException e) {
+			fail(new PendingSubmit(data, null, null, result), e);
+			return result;
+		}
+		publish(new PendingSubmit(data, body, reportTimestamps, result), mayWait);
+		return result;
+	}
+
+	/**
+	 * Serializes and compresses packets through pooled buffers, sized after the largest payload seen so far, so that
+	 * the only allocation left per set is its message body.
+	 */
+	private byte[] encode(List<TixDataPacket> packets) throws IOException {
+		ByteBuf payload = allocator.heapBuffer(expectedPayloadBytes);
+		try {
+			long serializeStart = System.nanoTime();
+			serde.serializeList(packets, new ByteBufOutputStream(payload));
+			serializeLatency.record(System.nanoTime() - serializeStart);
+			expectedPayloadBytes = Math.max(expectedPayloadBytes, payload.readableBytes());
+			long start = System.nanoTime();
+			ByteBuf compressed = compression.compress(payload, allocator);
+			try {
+				compressionNanos.add(System.nanoTime() - start);
+				payloadBytes.add(payload.readableBytes());
+				compressedBytes.add(compressed.readableBytes());
+				byte[] body = new byte[compressed.readableBytes()];
+				compressed.readBytes(body);
+				return body;
+			} finally {
+				compressed.release();
+			}
+		} finally {
+			payload.release();
+		}
+	}
+
+	private static long[] firstReportTimestamps(List<TixDataPacket> packets) {
+		long[] timestamps = new long[packets.size()];
+		for (int i = 0; i < timestamps.length; i++) {
+			timestamps[i] = TixPacketSerDe.getFirstReportTimestamp(packets.get(i));
+		}
+		return timestamps;
+	}
+
+	private Message message(byte[] body) {
+		MessageProperties properties = new MessageProperties();
+		properties.setContentType(MessageProperties.CONTENT_TYPE_JSON);
+		compression.getContentEncoding().ifPresent(properties::setContentEncoding);
+		return new Message(body, properties);
+	}
+
+	/**
+	 * Publishes a message once there is room in flight, either waiting for it or, on threads that must not wait,
+	 * deferring the message until a confirm frees room
+	 */
+	private void publish(PendingSubmit submit, boolean mayWait) {
+		if (mayWait) {
+			try {
+				inFlight.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				fail(submit, e);
+				return;
+			}
+		} else if (!inFlight.tryAcquire()) {
+			deferrals.increment();
+			deferred.add(submit);
+			// Room freed before the message was queued would otherwise go unnoticed
+			publishDeferred();
+			return;
+		}
+		send(submit);
+	}
+
+	/** Hands deferred messages over to the confirmation pool, as long as there is room in flight for them */
+	private void publishDeferred() {
+		while (!deferred.isEmpty() && inFlight.tryAcquire()) {
+			PendingSubmit submit = deferred.poll();
+			if (submit == null) {
+				inFlight.release();
+				continue;
+			}
+			confirmations.execute(() -> send(submit));
+		}
+	}
+
+	/** Publishes a message, with its room in flight already taken */
+	private void send(PendingSubmit submit) {
+		String correlationId = submit.data.getId() + "-" + sequence.incrementAndGet();
+		submit.attempts++;
+		if (submit.attempts == 1) {
+			long now = System.currentTimeMillis();
+			for (long reportTimestamp: submit.reportTimestamps) {
+				dataAge.record(TimeUnit.MILLISECONDS.toNanos(Math.max(now - TimeUnit.SECONDS.toMillis(reportTimestamp), 0)));
+			}
+		}
+		submit.publishedAt = System.nanoTime();
+		pending.put(correlationId, submit);
+		try {
+			rabbitTemplate.convertAndSend("", outQueueName, message(submit.body), new CorrelationData(correlationId));
+			publishLatency.record(System.nanoTime() - submit.publishedAt);
+			published.increment();
+		} catch (RuntimeException e) {
+			if (pending.remove(correlationId, submit)) {
+				release();
+				retryOrFail(submit, e);
+			}
+		}
+	}
+
+	private void confirm(CorrelationData correlationData, boolean ack, String cause) {
+		PendingSubmit submit = correlationData == null ? null : pending.remove(correlationData.getId());
+		if (submit == null) {
+			// Already given up on after a timeout, and published again
+			return;
+		}
+		release();
+		confirmLatency.record(System.nanoTime() - submit.publishedAt);
+		confirmations.execute(() -> {
+			if (ack) {
+				succeed(submit);
+			} else {
+				nacked.increment();
+				retryOrFail(submit, new IOException("Broker rejected packet set: " + cause));
+			}
+		});
+	}
+
+	private void expire() {
+		long now = System.nanoTime();
+		for (Map.Entry<String, PendingSubmit> entry: pending.entrySet()) {
+			PendingSubmit submit = entry.getValue();
+			if (now - submit.publishedAt > confirmTimeoutNanos && pending.remove(entry.getKey(), submit)) {
+				release();
+				timedOut.increment();
+				confirmations.execute(() -> retryOrFail(submit, new TimeoutException("No confirm for packet set " + entry.getKey())));
+			}
+		}
+	}
+
+	private void release() {
+		inFlight.release();
+		publishDeferred();
+	}
+
+	private void succeed(PendingSubmit submit) {
+		confirmed.increment();
+		try {
+			submit.result.complete(submit.data.onSubmitSuccess());
+		} catch (IOException | RuntimeException e) {
+			submit.result.completeExceptionally(e);
+		}
+	}
+
+	private void retryOrFail(PendingSubmit submit, Throwable cause) {
+		if (submit.attempts < maxAttempts) {
+			logger.warn("Packet set {} not confirmed after {} attempts, publishing it again", submit.data.getId(), submit.attempts, cause);
+			publish(submit, false);
+		} else {
+			fail(submit, cause);
+		}
+	}
+
+	private void fail(PendingSubmit submit, Throwable cause) {
+		logger.error("Could not submit packet set {}", submit.data.getId(), cause);
+		failed.increment();
+		submit.data.onSubmitFailure();
+		submit.result.completeExceptionally(cause);
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>();
+		metrics.add(new Metric<>("submitter.in-flight", maxInFlight - inFlight.availablePermits()));
+		metrics.add(new Metric<>("submitter.published", published.sum()));
+		metrics.add(new Metric<>("submitter.confirmed", confirmed.sum()));
+		metrics.add(new Metric<>("submitter.nacked", nacked.sum()));
+		metrics.add(new Metric<>("submitter.timed-out", timedOut.sum()));
+		metrics.add(new Metric<>("submitter.deferred", deferrals.sum()));
+		metrics.add(new Metric<>("submitter.failed", failed.sum()));
+		long payload = payloadBytes.sum();
+		long compressed = compressedBytes.sum();
+		metrics.add(new Metric<>("submitter.payload.bytes", payload));
+		metrics.add(new Metric<>("submitter.payload.compressed-bytes", compressed));
+		metrics.add(new Metric<>("submitter.payload.compression-ratio", compressed == 0 ? 1.0 : (double) payload / compressed));
+		metrics.add(new Metric<>("submitter.payload.compression-millis", TimeUnit.NANOSECONDS.toMillis(compressionNanos.sum())));
+		metrics.addAll(serializeLatency.toMetrics("submitter.serialize.latency"));
+		metrics.addAll(publishLatency.toMetrics("submitter.publish.latency"));
+		metrics.addAll(confirmLatency.toMetrics("submitter.confirm.latency"));
+		metrics.addAll(dataAge.toMetrics("submitter.data-age"));
+		return metrics;
+	}
+
+	@Override
+	public void destroy() {
+		timeouts.shutdownNow();
+		confirmations.shutdownNow();
+	}
+
+	/** Packet sets of a single send still being submitted, completing once there are none left */
+	private static class SendProgress {
+		private final CompletableFuture<Void> completion = new CompletableFuture<>();
+		private final AtomicInteger outstanding = new AtomicInteger();
+		private volatile Throwable error;
+
+		void started() {
+			outstanding.incrementAndGet();
+		}
+
+		boolean hasFailed() {
+			return error != null;
+		}
+
+		void failed(Throwable cause) {
+			if (error == null) {
+				error = cause;
+			}
+		}
+
+		void finished() {
+			if (outstanding.decrementAndGet() == 0) {
+				if (error == null) {
+					completion.complete(null);
+				} else {
+					completion.completeExceptionally(error);
+				}
+			}
+		}
+	}
+
+	private static class PendingSubmit {
+		private final SubmittablePacketSet data;
+		private final byte[] body;
+		/** First report timestamp, in unix seconds, of each packet in the set */
+		private final long[] reportTimestamps;
+		private final CompletableFuture<Optional<SubmittablePacketSet>> result;
+		private volatile int attempts;
+		private volatile long publishedAt;
+
+		PendingSubmit(SubmittablePacketSet data, byte[] body, long[] reportTimestamps,
+		              CompletableFuture<Optional<SubmittablePacketSet>> result) {
+			this.data = data;
+			this.body = body;
+			this.reportTimestamps = reportTimestamps;
+			this.result = result;
+		}
+	}
 }
@@ -11,5 +11,14 @@ public interface SubmittablePacketSet {
 	
 	List<TixDataPacket> packetsToSubmit() throws IOException;
 	
+	/** The packet set following this one, which can be submitted while this one awaits confirmation, if any */
+	default Optional<SubmittablePacketSet> following() throws IOException {
+		return Optional.empty();
+	}
+	
 	Optional<SubmittablePacketSet> onSubmitSuccess() throws IOException;
+	
+	/** Releases the set after it could not be submitted, so that its packets are extracted again later */
+	default void onSubmitFailure() {
+	}
 }
@@ -2,28 +2,136 @@ package com.github.tix_measurements.time.condenser.store;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
 import java.util.Optional;
-import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.github.tix_measurements.time.condenser.sender.SubmittablePacketSet;
+import com.github.tix_measurements.time.condenser.utils.binary.ObservationView;
 import com.github.tix_measurements.time.condenser.utils.jackson.TixPacketSerDe;
 import com.github.tix_measurements.time.core.data.TixDataPacket;
 
 public abstract class AbstractInstallationMeasurements implements InstallationMeasurements {
+	public static final int DEFAULT_MAX_WINDOWS_IN_FLIGHT = 4;
+
 	private final Logger logger = LoggerFactory.getLogger(this.getClass());
-	
+
 	private static final int MIN_REQUIRED_REPORTS = 1024 + 60;
 	private static final int MAX_REPORTS_USED_AT_ONCE = 1200;
 	private static final int MAX_ACCEPTED_REPORT_GAP = 5 * 60;
 	private static final int MAX_MEASURES_PER_PACKET = 60;
 
+	private final SampleIndex samples = new SampleIndex(MAX_ACCEPTED_REPORT_GAP * 1000000000L);
+	/** Packet sets extracted and not yet completed, oldest first */
+	private final Deque<Window> windows = new ArrayDeque<>();
+	private final int maxWindowsInFlight;
+
+	protected AbstractInstallationMeasurements() {
+		this(DEFAULT_MAX_WINDOWS_IN_FLIGHT);
+	}
+
+	protected AbstractInstallationMeasurements(int maxWindowsInFlight) {
+		if (maxWindowsInFlight < 1) {
+			throw new IllegalArgumentException(String.format("At least one packet set must be allowed in flight, got %d", maxWindowsInFlight));
+		}
+		this.maxWindowsInFlight = maxWindowsInFlight;
+	}
+
+	/** Stores a data packet under its first report timestamp, returning whether it was not already stored */
+	protected abstract boolean appendSample(long timestamp, TixDataPacket packet) throws IOException;
+
+	/** Reads the data packet stored under the given timestamp */
+	protected abstract TixDataPacket readSample(long timestamp) throws IOException;
+
+	/** Removes the data packet stored under the given timestamp */
+	protected abstract void deleteSample(long timestamp) throws IOException;
+
+	@Override
+	public void close() throws IOException {
+	}
+
+	@Override
+	public void sync() throws IOException {
+	}
+
+	@Override
+	public final SampleIndex sampleStartTimes() {
+		return samples;
+	}
+
+	@Override
+	public void append(TixDataPacket packet) throws IOException {
+		long timestamp = TixPacketSerDe.getFirstReportTimestamp(packet);
+		if (appendSample(timestamp, packet)) {
+			index(timestamp, packet);
+		}
+	}
+
+	@Override
+	public List<TixDataPacket> get(long from, long to) throws IOException {
+		int fromIndex = samples.ceilingIndex(from);
+		int toIndex = samples.ceilingIndex(to + 1);
+		List<TixDataPacket> result = new ArrayList<>(Math.max(toIndex - fromIndex, 0));
+		for (int i = fromIndex; i < toIndex; i++) {
+			result.add(readSample(samples.timestamp(i)));
+		}
+		return result;
+	}
+
+	@Override
+	public void delete(long from, long to) throws IOException {
+		int fromIndex = samples.ceilingIndex(from);
+		int toIndex = samples.ceilingIndex(to + 1);
+		for (int i = fromIndex; i < toIndex; i++) {
+			deleteSample(samples.timestamp(i));
+		}
+		if (fromIndex < toIndex) {
+			samples.removeRange(fromIndex, toIndex);
+		}
+	}
+
+	/** Forces the entries of a directory, so that files created or deleted in it survive a crash of the host */
+	protected static void syncDirectory(Path directory) throws IOException {
+		try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			channel.force(true);
+		}
+	}
+
+	/** Indexes a sample that was already stored before this instance was created */
+	protected void restore(long timestamp) throws IOException {
+		restore(timestamp, readSample(timestamp));
+	}
+
+	/** Indexes a sample that was already stored before this instance was created, and already read back */
+	protected void restore(long timestamp, TixDataPacket packet) {
+		index(timestamp, packet);
+	}
+
+	/** Indexes a sample that was already stored before this instance was created, from its persisted summary */
+	protected void restore(long timestamp, int observations, InetAddress address, long initialTimestamp) {
+		samples.add(timestamp, observations, address, initialTimestamp);
+	}
+
+	/**
+	 * Extracts the next packet set ready to be submitted, if any. While earlier sets are still being submitted the next
+	 * one starts where the earlier ones will leave the samples once confirmed, up to the maximum of sets in flight.
+	 */
 	public Optional<SubmittablePacketSet> checkAndExtract() throws IOException {
+		if (windows.size() >= maxWindowsInFlight) {
+			logger.debug("Installation {} has {} packet sets being submitted", getInstallationId(), windows.size());
+			return Optional.empty();
+		}
+		if (!windows.isEmpty()) {
+			return extractFollowing();
+		}
 		int lastReportsCount;
 		do {
 			lastReportsCount = sampleStartTimes().size();
@@ -36,86 +144,146 @@ public abstract class AbstractInstallationMeasurements implements InstallationMe
 		logger.info("Installation {} check and extract ends with {}", getInstallationId(), sampleStartTimes().size());
 		return Optional.empty();
 	}
-	
-	static private int observationsIn(TixDataPacket packet) {
-		return packet.getMessage().length / 45;
-	}
-	
-	private Optional<Integer> find_gap_cut(List<TixDataPacket> packet) {
-		long diff = MAX_ACCEPTED_REPORT_GAP * 1000000000L;
-		Optional<Integer> gap_cut = Optional.empty();
-		for (int i = 0; i + 1 < packet.size(); ++i) {
-			final TixDataPacket prev = packet.get(i);
-			final TixDataPacket next = packet.get(i + 1);
-			final long next_diff = next.getInitialTimestamp() - prev.getInitialTimestamp(); 
-			if (next_diff > diff) {
-				diff = next_diff;
-				gap_cut = Optional.of(i);
-			}
-		}
-		return gap_cut;
+
+	static int observationsIn(TixDataPacket packet) {
+		return ObservationView.count(packet.getMessage());
 	}
-	
+
+	private void index(long timestamp, TixDataPacket packet) {
+		samples.add(timestamp, observationsIn(packet), packet.getFrom().getAddress(), packet.getInitialTimestamp());
+	}
+
 	protected Optional<SubmittablePacketSet> checkAndExtractOnce() throws IOException {
-		List<TixDataPacket> processable_reports = new ArrayList<>();
-		List<Long> remaining_start_times = new ArrayList<>(sampleStartTimes());
-		
-		while (processable_reports.stream().mapToInt(AbstractInstallationMeasurements::observationsIn).sum() < MIN_REQUIRED_REPORTS && !remaining_start_times.isEmpty()) {
-			final long new_start = remaining_start_times.remove(0);
-			final TixDataPacket new_report = this.get(Arrays.asList(new_start)).get(0);
-			
-			if (processable_reports.size() > 0) {
-				final InetAddress processable_reports_ip = processable_reports.get(0).getFrom().getAddress();
-				final InetAddress new_report_ip = new_report.getFrom().getAddress();
-				if (!processable_reports_ip.equals(new_report_ip)) {
-					logger.info("Installation {} dropping {} measures with wrong ip", getInstallationId(), processable_reports.size() + 1);
-					this.delete(sampleStartTimes().subList(0, processable_reports.size() + 1));
-					return Optional.empty();
-				}
-			}
-			processable_reports.add(new_report);
-			
-			if (processable_reports.stream().mapToInt(AbstractInstallationMeasurements::observationsIn).sum() <= MIN_REQUIRED_REPORTS) {
-				continue;
+		final int readyIndex = samples.firstIndexReaching(MIN_REQUIRED_REPORTS);
+		final int addressChange = samples.firstAddressChange();
+		final int gap = samples.firstGap();
+
+		if (addressChange >= 0 && (readyIndex < 0 || addressChange <= readyIndex)) {
+			logger.info("Installation {} dropping {} measures with wrong ip", getInstallationId(), addressChange + 1);
+			this.delete(samples.timestamp(0), samples.timestamp(addressChange));
+			return Optional.empty();
+		}
+
+		if (readyIndex < 0) {
+			return Optional.empty();
+		}
+
+		if (gap >= 0 && gap < readyIndex) {
+			logger.info("Installation {} dropping {} measures with too much separation", getInstallationId(), gap + 1);
+			this.delete(samples.timestamp(0), samples.timestamp(gap));
+			return Optional.empty();
+		}
+
+		return Optional.of(extract(0, readyIndex));
+	}
+
+	/**
+	 * Extracts the packet set following the last one in flight. Samples to drop are left alone, as earlier sets may
+	 * still need them; they are dealt with once every set in flight completes.
+	 */
+	private Optional<SubmittablePacketSet> extractFollowing() throws IOException {
+		final int fromIndex = samples.ceilingIndex(windows.peekLast().nextStart);
+		if (fromIndex >= samples.size()) {
+			return Optional.empty();
+		}
+		final long previousObservations = fromIndex == 0 ? 0 : samples.cumulativeObservations(fromIndex - 1);
+		final int readyIndex = samples.firstIndexReaching(previousObservations + MIN_REQUIRED_REPORTS);
+		if (readyIndex < 0) {
+			return Optional.empty();
+		}
+		final int addressChange = samples.firstAddressChange();
+		final int gap = samples.firstGap();
+		if ((addressChange >= 0 && addressChange <= readyIndex) || (gap >= 0 && gap < readyIndex)) {
+			return Optional.empty();
+		}
+		return Optional.of(extract(fromIndex, readyIndex));
+	}
+
+	private Window extract(int fromIndex, int readyIndex) throws IOException {
+		final List<TixDataPacket> toSubmit = this.get(samples.timestamp(fromIndex), samples.timestamp(readyIndex));
+		final int toDelete = toSubmit.size() / 2;
+		final long deleteFrom = samples.timestamp(fromIndex);
+		final long deleteTo = toDelete > 0 ? samples.timestamp(fromIndex + toDelete - 1) : deleteFrom;
+		final long nextStart = toDelete > 0 ? samples.timestamp(fromIndex + toDelete) : Long.MAX_VALUE;
+
+		logger.info("Installation {} builds submittable packet set", getInstallationId());
+		Window window = new Window(toSubmit, toDelete > 0, deleteFrom, deleteTo, nextStart);
+		windows.addLast(window);
+		return window;
+	}
+
+	/**
+	 * A packet set being submitted. Once confirmed, the first half of its samples is deleted, but only after every set
+	 * extracted before it is confirmed too, so deletions always happen from the oldest sample onwards.
+	 *
+	 * A failed set takes every set extracted after it down with it: those start where the failed one would have left
+	 * the samples, so deleting their ranges would leave a hole after the samples it kept. Their confirmations delete
+	 * nothing and extraction starts over from the oldest sample.
+	 */
+	private class Window implements SubmittablePacketSet {
+		private final List<TixDataPacket> toSubmit;
+		private final boolean deletes;
+		private final long deleteFrom;
+		private final long deleteTo;
+		/** Timestamp from which the set following this one starts */
+		private final long nextStart;
+		private boolean confirmed;
+		/** Set once this set or one extracted before it failed */
+		private boolean abandoned;
+
+		Window(List<TixDataPacket> toSubmit, boolean deletes, long deleteFrom, long deleteTo, long nextStart) {
+			this.toSubmit = toSubmit;
+			this.deletes = deletes;
+			this.deleteFrom = deleteFrom;
+			this.deleteTo = deleteTo;
+			this.nextStart = nextStart;
+			this.confirmed = false;
+			this.abandoned = false;
+		}
+
+		@Override
+		public List<TixDataPacket> packetsToSubmit() {
+			return toSubmit;
+		}
+
+		@Override
+		public Optional<SubmittablePacketSet> following() throws IOException {
+			return checkAndExtract();
+		}
+
+		@Override
+		public Optional<SubmittablePacketSet> onSubmitSuccess() throws IOException {
+			logger.info("Installation {} did submit", getId());
+			if (abandoned) {
+				logger.info("Installation {} submitted a packet set after an earlier one failed, keeping its samples", getId());
+				return checkAndExtract();
 			}
-			
-			final Optional<Integer> gap_cut = find_gap_cut(processable_reports);
-			final List<TixDataPacket> toSubmit;
-			final List<Long> toDelete;
-			if (gap_cut.isPresent()) {
-				if (processable_reports.stream().limit(gap_cut.get()).mapToInt(AbstractInstallationMeasurements::observationsIn).sum() < MIN_REQUIRED_REPORTS) {
-					logger.info("Installation {} dropping {} measures with too much separation", getInstallationId(), processable_reports.size() + 1);
-					this.delete(sampleStartTimes().subList(0, gap_cut.get() + 1));
-					return Optional.empty();
-				} else {
-					toSubmit = processable_reports.subList(0, gap_cut.get() + 1);
-					toDelete = sampleStartTimes().subList(0, toSubmit.size() / 2);
+			confirmed = true;
+			while (!windows.isEmpty() && windows.peekFirst().confirmed) {
+				Window done = windows.pollFirst();
+				if (done.deletes) {
+					delete(done.deleteFrom, done.deleteTo);
 				}
-			} else {
-				toSubmit = processable_reports;
-				toDelete = sampleStartTimes().subList(0, toSubmit.size() / 2);
 			}
+			return checkAndExtract();
+		}
 
-			logger.info("Installation {} builds submittable packet set", getInstallationId());
-			return Optional.of(new SubmittablePacketSet() {
-				@Override
-				public List<TixDataPacket> packetsToSubmit() {
-					return toSubmit;
-				}
-
-				@Override
-				public Optional<SubmittablePacketSet> onSubmitSuccess() throws IOException {
-					logger.info("Installation {} did submit", getId());
-					delete(toDelete);
-					return checkAndExtract();
-				}
+		@Override
+		public void onSubmitFailure() {
+			logger.warn("Installation {} failed to submit", getId());
+			if (abandoned) {
+				return;
+			}
+			Window discarded;
+			do {
+				discarded = windows.pollLast();
+				discarded.abandoned = true;
+			} while (discarded != this);
+		}
 
-				@Override
-				public String getId() {
-					return Long.toString(getInstallationId());
-				}
-			});
+		@Override
+		public String getId() {
+			return Long.toString(getInstallationId());
 		}
-		return Optional.empty();
 	}
 }
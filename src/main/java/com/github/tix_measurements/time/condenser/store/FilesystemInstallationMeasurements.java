@@ -2,19 +2,18 @@ package com.github.tix_measurements.time.condenser.store;
 
 import static java.lang.String.format;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.attribute.PosixFilePermissions;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -23,7 +22,6 @@ import java.util.stream.Stream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.github.tix_measurements.time.condenser.utils.jackson.TixPacketSerDe;
 import com.github.tix_measurements.time.core.data.TixDataPacket;
 
 public class FilesystemInstallationMeasurements extends AbstractInstallationMeasurements {
@@ -33,78 +31,94 @@ public class FilesystemInstallationMeasurements extends AbstractInstallationMeas
 	public static final String REPORTS_FILE_EXTENSION = "json";
 	
 	public static final String REPORTS_FILE_NAME_TEMPLATE = format("%s-%%d.%s", REPORTS_FILE_SUFFIX, REPORTS_FILE_EXTENSION);
-	public static final Pattern REPORTS_TIMESTAMP_CAPTURE = Pattern.compile(format("%s-(\\d+).%s", REPORTS_FILE_SUFFIX, REPORTS_FILE_EXTENSION));
+	public static final String REPORTS_FILE_NAME_FORMAT_TEMPLATE = format("%s-%%d.%%s", REPORTS_FILE_SUFFIX);
+	public static final Pattern REPORTS_TIMESTAMP_CAPTURE = Pattern.compile(format("%s-(\\d+).(%s|%s)", REPORTS_FILE_SUFFIX,
+			ReportFormat.JSON.getFileExtension(), ReportFormat.BINARY.getFileExtension()));
 	
 	private final Path baseReportsPath;
 	private final long userId;
 	private final long installationId;
-	private List<Long> samples;
+	private final ReportFormat reportFormat;
+	private final SampleIndexJournal journal;
+	/** Report files written since the last sync */
+	private final List<Path> unsynced;
+	/** Whether report files were created or deleted since the last sync */
+	private boolean directoryChanged;
 
 	private final Logger logger = LoggerFactory.getLogger(this.getClass());
-	private final TixPacketSerDe packetSerDe = new TixPacketSerDe();
 	
-	public static Map<Long, InstallationMeasurements> loadFrom(Path baseReportsPath) throws IOException {
-		final Logger logger = LoggerFactory.getLogger(FilesystemInstallationMeasurements.class);
-		if (!Files.exists(baseReportsPath)) {
-			return new HashMap<>();
-		}
-			
-		logger.info("Loading full reports directory");
-		Map<Long, InstallationMeasurements> result = new HashMap<>();
-		try (Stream<Path> paths = Files.walk(baseReportsPath)) {
-			paths
-				.filter(path -> path.getNameCount() == baseReportsPath.getNameCount() + 2)
-				.forEach(path -> {
-					long userId = Long.parseLong(path.getName(path.getNameCount() - 2).toString());
-					long installationId = Long.parseLong(path.getName(path.getNameCount() - 1).toString());
-					try {
-						result.put(installationId, new FilesystemInstallationMeasurements(baseReportsPath, userId, installationId));
-					} catch (IOException e) {
-						throw new UncheckedIOException(e); 
-					}
-				});
-		} catch (UncheckedIOException e) {
-			throw e.getCause();
-		}
-		return result;
+	public FilesystemInstallationMeasurements(Path baseReportsPath, Long userId, Long installationId) throws IOException {
+		this(baseReportsPath, userId, installationId, ReportFormat.JSON);
 	}
 	
-	public FilesystemInstallationMeasurements(Path baseReportsPath, Long userId, Long installationId) throws IOException {
+	public FilesystemInstallationMeasurements(Path baseReportsPath, Long userId, Long installationId, ReportFormat reportFormat) throws IOException {
+		this(baseReportsPath, userId, installationId, reportFormat, DEFAULT_MAX_WINDOWS_IN_FLIGHT);
+	}
+	
+	public FilesystemInstallationMeasurements(Path baseReportsPath, Long userId, Long installationId, ReportFormat reportFormat,
+	                                          int maxWindowsInFlight) throws IOException {
+		super(maxWindowsInFlight);
 		this.baseReportsPath = baseReportsPath;
 		this.userId = userId;
 		this.installationId = installationId;
-		this.samples = new ArrayList<>();
+		this.reportFormat = reportFormat;
+		this.journal = new SampleIndexJournal(reportDirectory());
+		this.unsynced = new ArrayList<>();
 		
 		if (Files.exists(reportDirectory())) {
 			logger.info("Loading reports directory (user {}, installation {})", userId, installationId);
-			try (Stream<Path> paths = Files.walk(reportDirectory())) {
-				paths.map(path -> {
-						String fileName = path.getFileName().toString();
-						return REPORTS_TIMESTAMP_CAPTURE.matcher(fileName);
-					})
-					.filter(Matcher::matches)
-					.mapToLong(matcher -> {
-						return Long.parseLong(matcher.group(1));
-					})
-					.forEach(samples::add);
-				samples.sort(Comparator.naturalOrder());
-				logger.info("Reports directory (user {}, installation {}) successfully loaded", userId, installationId);
+			Optional<SampleIndex> journaled = journal.load();
+			if (journaled.isPresent() && journal.closedCleanly()) {
+				SampleIndex index = journaled.get();
+				for (int i = 0; i < index.size(); i++) {
+					restore(index.timestamp(i), index.observations(i), index.address(i), index.initialTimestamp(i));
+				}
+			} else {
+				reconcile(journaled);
 			}
+			logger.info("Reports directory (user {}, installation {}) successfully loaded", userId, installationId);
 		}
 	}
 	
+	@Override
+	public long getUserId() {
+		return userId;
+	}
+
 	@Override
 	public long getInstallationId() {
 		return installationId;
 	}
 
+	/** Forces the report files written since the last sync, then the directory, and then the journal */
+	@Override
+	public void sync() throws IOException {
+		for (Path reportPath: unsynced) {
+			try (FileChannel channel = FileChannel.open(reportPath, StandardOpenOption.WRITE)) {
+				channel.force(false);
+			} catch (NoSuchFileException e) {
+				logger.debug("Report file {} deleted before being synced", reportPath);
+			}
+		}
+		unsynced.clear();
+		if (directoryChanged) {
+			syncDirectory(reportDirectory());
+			directoryChanged = false;
+		}
+		journal.force();
+	}
+
 	@Override
-	public List<Long> sampleStartTimes() {
-		return samples;
+	public void close() throws IOException {
+		try {
+			sync();
+		} finally {
+			journal.close();
+		}
 	}
 
 	@Override
-	public void append(TixDataPacket packet) throws IOException {
+	protected boolean appendSample(long firstReportTimestamp, TixDataPacket packet) throws IOException {
 		Path reportDirectory = reportDirectory();
 		logger.debug("reportDirectory={}", reportDirectory);
 		if (!Files.exists(reportDirectory)) {
@@ -112,39 +126,87 @@ public class FilesystemInstallationMeasurements extends AbstractInstallationMeas
 			Files.createDirectories(reportDirectory, PosixFilePermissions.asFileAttribute(REPORTS_DIRECTORIES_PERMISSIONS));
 		}
 
-		long firstReportTimestamp = TixPacketSerDe.getFirstReportTimestamp(packet);
-		Path reportPath = reportDirectory.resolve(format(REPORTS_FILE_NAME_TEMPLATE, firstReportTimestamp));
-		if (!Files.exists(reportPath)) {
+		Path reportPath = reportFile(firstReportTimestamp, reportFormat);
+		if (!sampleStartTimes().contains(firstReportTimestamp) && !Files.exists(reportPath)) {
 			logger.info("Creating report file {}", reportPath);
-			Files.createFile(reportPath);
-			try (BufferedWriter writer = Files.newBufferedWriter(reportPath)) {
-				writer.write(new String(packetSerDe.serialize(packet)));
-				samples.add(firstReportTimestamp);
-				samples.sort(Comparator.naturalOrder());
-			}
+			journal.open();
+			Files.write(reportPath, reportFormat.serialize(packet), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			unsynced.add(reportPath);
+			directoryChanged = true;
+			journal.added(firstReportTimestamp, observationsIn(packet), packet.getFrom().getAddress(), packet.getInitialTimestamp());
 			logger.info("Report file {} successfully created", reportPath);
+			return true;
 		} else {
 			logger.info("Report file {} already exists, not writing to disk.", reportPath);
+			return false;
+		}
+	}
+
+	@Override
+	protected TixDataPacket readSample(long timestamp) throws IOException {
+		try {
+			return ReportFormat.deserialize(Files.readAllBytes(reportFile(timestamp, reportFormat)));
+		} catch (NoSuchFileException e) {
+			for (ReportFormat otherFormat: ReportFormat.values()) {
+				Path reportPath = reportFile(timestamp, otherFormat);
+				if (otherFormat != reportFormat && Files.exists(reportPath)) {
+					return ReportFormat.deserialize(Files.readAllBytes(reportPath));
+				}
+			}
+			throw e;
 		}
 	}
 
 	@Override
-	public List<TixDataPacket> get(List<Long> range) throws IOException {
-		ArrayList<TixDataPacket> result = new ArrayList<>(range.size());
-		for (long time: range) {
-			Path path = reportFile(time);
-			TixDataPacket packet = packetSerDe.deserialize(Files.readAllBytes(path));
-			result.add(packet);
+	public void delete(long from, long to) throws IOException {
+		journal.open();
+		super.delete(from, to);
+		journal.removed(from, to);
+		if (journal.shouldRewrite(sampleStartTimes())) {
+			journal.rewrite(sampleStartTimes());
 		}
-		return result;
 	}
 
 	@Override
-	public void delete(List<Long> range) throws IOException {
-		for (long time: range) {
-			Files.deleteIfExists(reportFile(time));
+	protected void deleteSample(long timestamp) throws IOException {
+		for (ReportFormat format: ReportFormat.values()) {
+			directoryChanged |= Files.deleteIfExists(reportFile(timestamp, format));
+		}
+	}
+	
+	/** Restores the reports listed in the directory, taking what the journal knows of them, and rewrites the journal if they differ */
+	private void reconcile(Optional<SampleIndex> journaled) throws IOException {
+		long[] timestamps;
+		try (Stream<Path> paths = Files.walk(reportDirectory())) {
+			timestamps = paths.map(path -> {
+					String fileName = path.getFileName().toString();
+					return REPORTS_TIMESTAMP_CAPTURE.matcher(fileName);
+				})
+				.filter(Matcher::matches)
+				.mapToLong(matcher -> {
+					return Long.parseLong(matcher.group(1));
+				})
+				.sorted()
+				.distinct()
+				.toArray();
+		}
+		int unjournaled = 0;
+		for (long timestamp: timestamps) {
+			if (journaled.isPresent() && journaled.get().contains(timestamp)) {
+				SampleIndex index = journaled.get();
+				int i = index.ceilingIndex(timestamp);
+				restore(timestamp, index.observations(i), index.address(i), index.initialTimestamp(i));
+			} else {
+				restore(timestamp);
+				unjournaled++;
+			}
+		}
+		int missing = journaled.isPresent() ? journaled.get().size() - (timestamps.length - unjournaled) : 0;
+		if (!journaled.isPresent() || unjournaled > 0 || missing > 0) {
+			logger.info("Reports index (user {}, installation {}) rebuilt, {} reports were not journaled and {} journaled ones are gone",
+					userId, installationId, unjournaled, missing);
+			journal.rewrite(sampleStartTimes());
 		}
-		samples.removeAll(range);
 	}
 	
 	private Path reportDirectory() {
@@ -153,8 +215,8 @@ public class FilesystemInstallationMeasurements extends AbstractInstallationMeas
 				.resolve(Long.toString(installationId));
 	}
 	
-	private Path reportFile(long time) {
+	private Path reportFile(long time, ReportFormat format) {
 		return reportDirectory()
-				.resolve(format(REPORTS_FILE_NAME_TEMPLATE, time));
+				.resolve(format(REPORTS_FILE_NAME_FORMAT_TEMPLATE, time, format.getFileExtension()));
 	}
 }
@@ -1,5 +1,6 @@
 package com.github.tix_measurements.time.condenser.store;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.util.List;
 import java.util.Optional;
@@ -7,20 +8,29 @@ import java.util.Optional;
 import com.github.tix_measurements.time.condenser.sender.SubmittablePacketSet;
 import com.github.tix_measurements.time.core.data.TixDataPacket;
 
-/** A container of {@link TixDataPacket}s associated to a single installation */
-interface InstallationMeasurements {
+/** A container of {@link TixDataPacket}s associated to a single installation, not safe for concurrent use */
+interface InstallationMeasurements extends Closeable {
+	long getUserId();
+
 	long getInstallationId();
 	
-	List<Long> sampleStartTimes();
+	SampleIndex sampleStartTimes();
 	
 	/** Adds a data packet to the store */
 	void append(TixDataPacket packet) throws IOException;
 	
-	/** Reads available data for a time range */
-	List<TixDataPacket> get(List<Long> range) throws IOException;
+	/** Reads available data for an inclusive time range */
+	List<TixDataPacket> get(long from, long to) throws IOException;
 	
-	/** Removes data in a time range */
-	void delete(List<Long> range) throws IOException;
+	/** Removes data in an inclusive time range */
+	void delete(long from, long to) throws IOException;
 	
 	Optional<SubmittablePacketSet> checkAndExtract() throws IOException;
+
+	/** Forces the data appended since the last sync to disk, so that it survives a crash of the host */
+	void sync() throws IOException;
+
+	/** Releases the files held open by the installation, which reopens them if it is used again */
+	@Override
+	void close() throws IOException;
 }
@@ -3,43 +3,153 @@ package com.github.tix_measurements.time.condenser.store;
 import static org.assertj.core.api.Assertions.assertThat;
 
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
 import org.springframework.stereotype.Component;
 
+import com.github.tix_measurements.time.condenser.metrics.LatencyHistogram;
 import com.github.tix_measurements.time.condenser.sender.SubmittablePacketSet;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.MapMaker;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.github.tix_measurements.time.core.data.TixDataPacket;
 
+/**
+ * Stores the packets of every installation, safe for concurrent use. Each installation is only ever accessed while
+ * holding its lock stripe, so packets of different installations are processed in parallel while those of a single
+ * installation are stored and extracted one at a time. Stored packets are forced to disk before the call storing them
+ * returns, once per call and installation.
+ *
+ * Handles evicted from the cache are closed, releasing their files, once the caller that evicted them has released its
+ * own installation lock, so that no thread ever holds two installation locks at once.
+ */
 @Component
-public class MeasurementStore {
+public class MeasurementStore implements PublicMetrics, DisposableBean {
+	public static final long DEFAULT_HANDLES_MAXIMUM_SIZE = 10000L;
+	public static final int DEFAULT_HANDLES_IDLE_SECONDS = 600;
+	public static final int LOCK_STRIPES = 1024;
+
 	private final Logger logger = LoggerFactory.getLogger(this.getClass());
 	private final Path baseReportsPath;
+	private final ReportsBackend backend;
+	private final ReportFormat reportFormat;
+	private final long segmentMaxBytes;
+	private final int maxWindowsInFlight;
+	
+	/** Open installations, bounded in size and idle time; evicted ones are reloaded from disk on their next use */
+	private final Cache<Long, InstallationMeasurements> handles;
+	/**
+	 * Every installation handle still referenced, either cached or evicted but held elsewhere, typically by a packet set
+	 * being submitted. Reusing them on reload keeps a single handle per installation, so a pending delete never leaves
+	 * another handle with a stale index.
+	 */
+	private final ConcurrentMap<Long, InstallationMeasurements> openHandles;
+	/** Handles evicted from the cache and not yet closed */
+	private final Queue<InstallationMeasurements> evicted;
+	private final Striped<Lock> locks;
+	private final LatencyHistogram appendLatency;
+	private final LatencyHistogram syncLatency;
+	private final LatencyHistogram extractLatency;
 	
-	private Map<Long, InstallationMeasurements> content;
+	public MeasurementStore(String reportsPath) {
+		this(reportsPath, ReportsBackend.FILESYSTEM.getConfigName(), ReportFormat.JSON.getConfigName(), SegmentLogInstallationMeasurements.DEFAULT_SEGMENT_MAX_BYTES,
+				DEFAULT_HANDLES_MAXIMUM_SIZE, DEFAULT_HANDLES_IDLE_SECONDS, AbstractInstallationMeasurements.DEFAULT_MAX_WINDOWS_IN_FLIGHT);
+	}
 	
-	public MeasurementStore(@Value("${tix-condenser.reports.path}") String reportsPath) {
+	@Autowired
+	public MeasurementStore(@Value("${tix-condenser.reports.path}") String reportsPath,
+	                        @Value("${tix-condenser.reports.backend}") String backend,
+	                        @Value("${tix-condenser.reports.format}") String reportFormat,
+	                        @Value("${tix-condenser.reports.segment-max-bytes}") long segmentMaxBytes,
+	                        @Value("${tix-condenser.reports.handles.maximum-size}") long handlesMaximumSize,
+	                        @Value("${tix-condenser.reports.handles.idle-seconds}") int handlesIdleSeconds,
+	                        @Value("${tix-condenser.reports.max-windows-in-flight}") int maxWindowsInFlight) {
 		logger.info("Creating MeasurementStore");
-		logger.trace("reportsPath={}", reportsPath);
+		logger.trace("reportsPath={} backend={} reportFormat={} segmentMaxBytes={} handlesMaximumSize={} handlesIdleSeconds={} maxWindowsInFlight={}",
+				reportsPath, backend, reportFormat, segmentMaxBytes, handlesMaximumSize, handlesIdleSeconds, maxWindowsInFlight);
 		try {
 			assertThat(reportsPath).isNotEmpty().isNotNull();
+			assertThat(backend).isNotEmpty().isNotNull();
+			assertThat(reportFormat).isNotEmpty().isNotNull();
+			assertThat(segmentMaxBytes).isPositive();
+			assertThat(handlesMaximumSize).isPositive();
+			assertThat(handlesIdleSeconds).isPositive();
+			assertThat(maxWindowsInFlight).isPositive();
 		} catch (AssertionError ae) {
 			throw new IllegalArgumentException(ae);
 		}
 		this.baseReportsPath = Paths.get(reportsPath).toAbsolutePath();
-
+		this.backend = ReportsBackend.fromConfigName(backend);
+		this.reportFormat = ReportFormat.fromConfigName(reportFormat);
+		this.segmentMaxBytes = segmentMaxBytes;
+		this.maxWindowsInFlight = maxWindowsInFlight;
+		this.openHandles = new MapMaker().weakValues().makeMap();
+		this.evicted = new ConcurrentLinkedQueue<>();
+		this.locks = Striped.lock(LOCK_STRIPES);
+		this.handles = CacheBuilder.newBuilder()
+				.maximumSize(handlesMaximumSize)
+				.expireAfterAccess(handlesIdleSeconds, TimeUnit.SECONDS)
+				.recordStats()
+				.<Long, InstallationMeasurements>removalListener(removal -> evicted.add(removal.getValue()))
+				.build();
+		this.appendLatency = new LatencyHistogram();
+		this.syncLatency = new LatencyHistogram();
+		this.extractLatency = new LatencyHistogram();
+	}
+	
+	private InstallationMeasurements newInstallationMeasurements(long userId, long installationId) throws IOException {
+		switch (backend) {
+		case SEGMENT_LOG:
+			return new SegmentLogInstallationMeasurements(baseReportsPath, userId, installationId, reportFormat, segmentMaxBytes, maxWindowsInFlight);
+		default:
+			return new FilesystemInstallationMeasurements(baseReportsPath, userId, installationId, reportFormat, maxWindowsInFlight);
+		}
+	}
+	
+	/** Returns the open handle of an installation, opening it if needed; the installation lock must be held */
+	private InstallationMeasurements handle(long userId, long installationId) throws IOException {
 		try {
-			this.content = FilesystemInstallationMeasurements.loadFrom(baseReportsPath);
-		} catch (IOException e) {
-			this.content = new HashMap<>();
+			return handles.get(installationId, () -> {
+				InstallationMeasurements open = openHandles.get(installationId);
+				if (open == null) {
+					logger.debug("Opening installation {} of user {}", installationId, userId);
+					open = newInstallationMeasurements(userId, installationId);
+					openHandles.put(installationId, open);
+				}
+				return open;
+			});
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			Throwables.propagateIfPossible(e.getCause(), IOException.class);
+			throw new IOException(e.getCause());
 		}
 	}
 	
@@ -47,20 +157,248 @@ public class MeasurementStore {
 		Long userId = packet.getUserId();
 		Long installationId = packet.getInstallationId();
 		
-		if (!content.containsKey(installationId)) {
-			InstallationMeasurements measures = new FilesystemInstallationMeasurements(baseReportsPath, userId, installationId);
-			content.put(installationId, measures);
+		Lock lock = locks.get(installationId);
+		lock.lock();
+		try {
+			InstallationMeasurements measures = handle(userId, installationId);
+			append(measures, packet);
+			sync(measures);
+			return extract(lock, measures);
+		} finally {
+			lock.unlock();
+			closeEvicted();
+		}
+	}
+	
+	/**
+	 * Stores packets of a single installation with one acquisition of its handle and lock, checking once afterwards
+	 * whether a packet set became ready
+	 */
+	public Optional<SubmittablePacketSet> storePackets(List<TixDataPacket> packets) throws IOException {
+		try {
+			assertThat(packets).isNotEmpty();
+			assertThat(packets).extracting(TixDataPacket::getInstallationId).containsOnly(packets.get(0).getInstallationId());
+		} catch (AssertionError ae) {
+			throw new IllegalArgumentException(ae);
+		}
+		Long userId = packets.get(0).getUserId();
+		Long installationId = packets.get(0).getInstallationId();
+		
+		Lock lock = locks.get(installationId);
+		lock.lock();
+		try {
+			InstallationMeasurements measures = handle(userId, installationId);
+			for (TixDataPacket packet: packets) {
+				append(measures, packet);
+			}
+			sync(measures);
+			return extract(lock, measures);
+		} finally {
+			lock.unlock();
+			closeEvicted();
+		}
+	}
+	
+	/** Installations with a reports directory, mapped to their user, found without reading any of their reports */
+	public Map<Long, Long> storedInstallations() throws IOException {
+		Map<Long, Long> installations = new HashMap<>();
+		if (!Files.isDirectory(baseReportsPath)) {
+			return installations;
+		}
+		try (DirectoryStream<Path> users = Files.newDirectoryStream(baseReportsPath, Files::isDirectory)) {
+			for (Path user: users) {
+				Optional<Long> userId = parseId(user);
+				if (!userId.isPresent()) {
+					continue;
+				}
+				try (DirectoryStream<Path> userInstallations = Files.newDirectoryStream(user, Files::isDirectory)) {
+					for (Path installation: userInstallations) {
+						parseId(installation).ifPresent(installationId -> installations.put(installationId, userId.get()));
+					}
+				}
+			}
+		}
+		return installations;
+	}
+	
+	private static Optional<Long> parseId(Path path) {
+		try {
+			return Optional.of(Long.parseLong(path.getFileName().toString()));
+		} catch (NumberFormatException e) {
+			return Optional.empty();
+		}
+	}
+	
+	/** Users owning at least one stored installation */
+	public Set<Long> userIds() {
+		try {
+			return new HashSet<>(storedInstallations().values());
+		} catch (IOException e) {
+			logger.warn("Could not list stored installations", e);
+			return Collections.emptySet();
+		}
+	}
+
+	/** Opens a stored installation, if needed, and checks whether it has a packet set ready */
+	public Optional<SubmittablePacketSet> checkAndExtract(long userId, long installationId) throws IOException {
+		Lock lock = locks.get(installationId);
+		lock.lock();
+		try {
+			return extract(lock, handle(userId, installationId));
+		} finally {
+			lock.unlock();
+			closeEvicted();
+		}
+	}
+	
+	/** Closes the evicted handles, unless they were loaded back into the cache since; no installation lock may be held */
+	private void closeEvicted() {
+		InstallationMeasurements measures;
+		while ((measures = evicted.poll()) != null) {
+			Lock lock = locks.get(measures.getInstallationId());
+			lock.lock();
+			try {
+				if (handles.getIfPresent(measures.getInstallationId()) != measures) {
+					measures.close();
+				}
+			} catch (IOException e) {
+				logger.warn("Could not close installation {}", measures.getInstallationId(), e);
+			} finally {
+				lock.unlock();
+			}
 		}
-		InstallationMeasurements measures = content.get(installationId);
+	}
+
+	/** Closes every handle still referenced */
+	@Override
+	public void destroy() {
+		evicted.clear();
+		for (InstallationMeasurements measures: openHandles.values()) {
+			Lock lock = locks.get(measures.getInstallationId());
+			lock.lock();
+			try {
+				measures.close();
+			} catch (IOException e) {
+				logger.warn("Could not close installation {}", measures.getInstallationId(), e);
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private void append(InstallationMeasurements measures, TixDataPacket packet) throws IOException {
+		long start = System.nanoTime();
 		measures.append(packet);
-		return measures.checkAndExtract();
+		appendLatency.record(System.nanoTime() - start);
+	}
+	
+	/** Forces what was just stored to disk, once per call however many packets it stored */
+	private void sync(InstallationMeasurements measures) throws IOException {
+		long start = System.nanoTime();
+		measures.sync();
+		syncLatency.record(System.nanoTime() - start);
+	}
+
+	private Optional<SubmittablePacketSet> extract(Lock lock, InstallationMeasurements measures) throws IOException {
+		long start = System.nanoTime();
+		Optional<SubmittablePacketSet> extracted = measures.checkAndExtract();
+		extractLatency.record(System.nanoTime() - start);
+		return locked(lock, extracted);
 	}
 	
+	private Optional<SubmittablePacketSet> locked(Lock lock, Optional<SubmittablePacketSet> packetSet) {
+		return packetSet.map(delegate -> new LockedPacketSet(lock, delegate));
+	}
+
 	public List<SubmittablePacketSet> packetsToSend() throws IOException {
 		List<SubmittablePacketSet> toSend = new ArrayList<>();
-		for (InstallationMeasurements measures: content.values()) {
-			measures.checkAndExtract().ifPresent(toSend::add);
+		for (Map.Entry<Long, Long> installation: storedInstallations().entrySet()) {
+			checkAndExtract(installation.getValue(), installation.getKey()).ifPresent(toSend::add);
 		}
 		return toSend;
 	}
+	
+	@Override
+	public Collection<Metric<?>> metrics() {
+		CacheStats stats = handles.stats();
+		List<Metric<?>> metrics = new ArrayList<>();
+		metrics.add(new Metric<>("reports.handles.size", handles.size()));
+		metrics.add(new Metric<>("reports.handles.hits", stats.hitCount()));
+		metrics.add(new Metric<>("reports.handles.loads", stats.loadCount()));
+		metrics.add(new Metric<>("reports.handles.load-failures", stats.loadExceptionCount()));
+		metrics.add(new Metric<>("reports.handles.evictions", stats.evictionCount()));
+		metrics.add(new Metric<>("reports.handles.retired", Math.max(openHandles.size() - handles.size(), 0)));
+		metrics.add(new Metric<>("reports.installations", openHandles.size()));
+		metrics.add(new Metric<>("reports.samples.pending", pendingSamples()));
+		metrics.addAll(appendLatency.toMetrics("reports.append.latency"));
+		metrics.addAll(syncLatency.toMetrics("reports.sync.latency"));
+		metrics.addAll(extractLatency.toMetrics("reports.extract.latency"));
+		return metrics;
+	}
+	
+	/**
+	 * Samples stored by every open installation and not yet deleted once submitted. Read without taking any lock, so
+	 * only approximate while packets are being stored.
+	 */
+	private long pendingSamples() {
+		long pending = 0;
+		for (InstallationMeasurements measures: openHandles.values()) {
+			pending += measures.sampleStartTimes().size();
+		}
+		return pending;
+	}
+	
+	/** Packet set whose outcome is reported back to its installation under the installation lock */
+	private class LockedPacketSet implements SubmittablePacketSet {
+		private final Lock lock;
+		private final SubmittablePacketSet delegate;
+		
+		LockedPacketSet(Lock lock, SubmittablePacketSet delegate) {
+			this.lock = lock;
+			this.delegate = delegate;
+		}
+		
+		@Override
+		public String getId() {
+			return delegate.getId();
+		}
+		
+		@Override
+		public List<TixDataPacket> packetsToSubmit() throws IOException {
+			return delegate.packetsToSubmit();
+		}
+		
+		@Override
+		public Optional<SubmittablePacketSet> following() throws IOException {
+			lock.lock();
+			try {
+				long start = System.nanoTime();
+				Optional<SubmittablePacketSet> following = delegate.following();
+				extractLatency.record(System.nanoTime() - start);
+				return locked(lock, following);
+			} finally {
+				lock.unlock();
+			}
+		}
+		
+		@Override
+		public Optional<SubmittablePacketSet> onSubmitSuccess() throws IOException {
+			lock.lock();
+			try {
+				return locked(lock, delegate.onSubmitSuccess());
+			} finally {
+				lock.unlock();
+			}
+		}
+		
+		@Override
+		public void onSubmitFailure() {
+			lock.lock();
+			try {
+				delegate.onSubmitFailure();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
 }
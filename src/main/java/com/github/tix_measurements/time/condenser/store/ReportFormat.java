@@ -0,0 +1,72 @@
+package com.github.tix_measurements.time.condenser.store;
+
+import static java.lang.String.format;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.github.tix_measurements.time.condenser.utils.binary.TixPacketBinaryCodec;
+import com.github.tix_measurements.time.condenser.utils.jackson.TixPacketSerDe;
+import com.github.tix_measurements.time.core.data.TixDataPacket;
+
+/**
+ * Encoding of the stored reports, as named in {@code tix-condenser.reports.format}. It only applies to writes: reads
+ * tell both formats apart by their first byte, so a reports volume may hold a mix of them.
+ */
+public enum ReportFormat {
+	/** Human readable, as produced by {@link TixPacketSerDe} */
+	JSON("json", "json") {
+		@Override
+		public byte[] serialize(TixDataPacket packet) throws IOException {
+			return SER_DE.serialize(packet);
+		}
+	},
+	/** Compact and cheap to parse, as produced by {@link TixPacketBinaryCodec} */
+	BINARY("binary", "bin") {
+		@Override
+		public byte[] serialize(TixDataPacket packet) throws IOException {
+			return BINARY_CODEC.serialize(packet);
+		}
+	};
+
+	private static final TixPacketSerDe SER_DE = TixPacketSerDe.shared();
+	private static final TixPacketBinaryCodec BINARY_CODEC = new TixPacketBinaryCodec();
+
+	private final String configName;
+	private final String fileExtension;
+
+	ReportFormat(String configName, String fileExtension) {
+		this.configName = configName;
+		this.fileExtension = fileExtension;
+	}
+
+	public String getConfigName() {
+		return configName;
+	}
+
+	public String getFileExtension() {
+		return fileExtension;
+	}
+
+	public abstract byte[] serialize(TixDataPacket packet) throws IOException;
+
+	/** Reads a packet in either format from the remaining bytes of a buffer */
+	public static TixDataPacket deserialize(ByteBuffer buffer) throws IOException {
+		if (TixPacketBinaryCodec.isBinary(buffer)) {
+			return BINARY_CODEC.deserialize(buffer);
+		}
+		return SER_DE.deserialize(buffer);
+	}
+
+	public static TixDataPacket deserialize(byte[] bytes) throws IOException {
+		return deserialize(ByteBuffer.wrap(bytes));
+	}
+
+	public static ReportFormat fromConfigName(String configName) {
+		return Arrays.stream(values())
+				.filter(format -> format.configName.equalsIgnoreCase(configName))
+				.findFirst()
+				.orElseThrow(() -> new IllegalArgumentException(format("Unknown reports format %s", configName)));
+	}
+}
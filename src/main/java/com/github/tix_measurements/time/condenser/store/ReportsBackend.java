@@ -0,0 +1,30 @@
+package com.github.tix_measurements.time.condenser.store;
+
+import static java.lang.String.format;
+
+import java.util.Arrays;
+
+/** How the reports of each installation are laid out on disk, as named in {@code tix-condenser.reports.backend} */
+public enum ReportsBackend {
+	/** One JSON file per packet, see {@link FilesystemInstallationMeasurements} */
+	FILESYSTEM("filesystem"),
+	/** Append-only segment files per installation, see {@link SegmentLogInstallationMeasurements} */
+	SEGMENT_LOG("segment-log");
+
+	private final String configName;
+
+	ReportsBackend(String configName) {
+		this.configName = configName;
+	}
+
+	public String getConfigName() {
+		return configName;
+	}
+
+	public static ReportsBackend fromConfigName(String configName) {
+		return Arrays.stream(values())
+				.filter(backend -> backend.configName.equalsIgnoreCase(configName))
+				.findFirst()
+				.orElseThrow(() -> new IllegalArgumentException(format("Unknown reports backend %s", configName)));
+	}
+}
@@ -0,0 +1,198 @@
+package com.github.tix_measurements.time.condenser.store;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+
+/**
+ * Sorted index of the samples stored for a single installation, keyed by their first report timestamp. Keeps, in
+ * primitive arrays, what the extractor needs to know about each sample without reading it back: its observation count
+ * (as prefix sums), its source address and its initial timestamp.
+ */
+public class SampleIndex {
+	private static final int INITIAL_CAPACITY = 32;
+
+	private final long maxGapNanos;
+	private long[] timestamps;
+	private long[] cumulativeObservations;
+	private long[] initialTimestamps;
+	private InetAddress[] addresses;
+	private int size;
+	private int firstAddressChange;
+	private int firstGap;
+
+	SampleIndex(long maxGapNanos) {
+		this.maxGapNanos = maxGapNanos;
+		this.timestamps = new long[INITIAL_CAPACITY];
+		this.cumulativeObservations = new long[INITIAL_CAPACITY];
+		this.initialTimestamps = new long[INITIAL_CAPACITY];
+		this.addresses = new InetAddress[INITIAL_CAPACITY];
+		this.size = 0;
+		this.firstAddressChange = -1;
+		this.firstGap = -1;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean contains(long timestamp) {
+		return indexOf(timestamp) >= 0;
+	}
+
+	public long timestamp(int index) {
+		checkIndex(index);
+		return timestamps[index];
+	}
+
+	/** Observations stored in the samples up to, and including, the given index */
+	public long cumulativeObservations(int index) {
+		checkIndex(index);
+		return cumulativeObservations[index];
+	}
+
+	public int observations(int index) {
+		checkIndex(index);
+		return (int) (cumulativeObservations[index] - (index == 0 ? 0 : cumulativeObservations[index - 1]));
+	}
+
+	public InetAddress address(int index) {
+		checkIndex(index);
+		return addresses[index];
+	}
+
+	public long initialTimestamp(int index) {
+		checkIndex(index);
+		return initialTimestamps[index];
+	}
+
+	/** Index of the given timestamp or, if absent, {@code -(insertion point) - 1} */
+	public int indexOf(long timestamp) {
+		return Arrays.binarySearch(timestamps, 0, size, timestamp);
+	}
+
+	/** Index of the first sample whose timestamp is not lower than the given one */
+	public int ceilingIndex(long timestamp) {
+		int index = indexOf(timestamp);
+		return index >= 0 ? index : -index - 1;
+	}
+
+	/** Index of the first sample whose source address differs from the first sample's, or -1 */
+	public int firstAddressChange() {
+		return firstAddressChange;
+	}
+
+	/** Index of the first sample followed by a gap longer than the accepted one, or -1 */
+	public int firstGap() {
+		return firstGap;
+	}
+
+	/** Index of the first sample at which the cumulative observation count reaches the given amount, or -1 */
+	public int firstIndexReaching(long observations) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (cumulativeObservations[middle] < observations) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low < size ? low : -1;
+	}
+
+	/** Adds a sample, returning whether it was not already indexed */
+	boolean add(long timestamp, int observations, InetAddress address, long initialTimestamp) {
+		int index = indexOf(timestamp);
+		if (index >= 0) {
+			return false;
+		}
+		index = -index - 1;
+		ensureCapacity(size + 1);
+		int moved = size - index;
+		if (moved > 0) {
+			System.arraycopy(timestamps, index, timestamps, index + 1, moved);
+			System.arraycopy(cumulativeObservations, index, cumulativeObservations, index + 1, moved);
+			System.arraycopy(initialTimestamps, index, initialTimestamps, index + 1, moved);
+			System.arraycopy(addresses, index, addresses, index + 1, moved);
+		}
+		timestamps[index] = timestamp;
+		cumulativeObservations[index] = (index == 0 ? 0 : cumulativeObservations[index - 1]) + observations;
+		initialTimestamps[index] = initialTimestamp;
+		addresses[index] = address;
+		size++;
+		if (moved == 0) {
+			update(index);
+		} else {
+			for (int i = index + 1; i < size; i++) {
+				cumulativeObservations[i] += observations;
+			}
+			rescan();
+		}
+		return true;
+	}
+
+	/** Removes the samples in the index range {@code [fromIndex, toIndex)} */
+	void removeRange(int fromIndex, int toIndex) {
+		if (fromIndex < 0 || toIndex > size || fromIndex > toIndex) {
+			throw new IndexOutOfBoundsException(String.format("[%d, %d) out of [0, %d)", fromIndex, toIndex, size));
+		}
+		if (fromIndex == toIndex) {
+			return;
+		}
+		long removed = cumulativeObservations[toIndex - 1] - (fromIndex == 0 ? 0 : cumulativeObservations[fromIndex - 1]);
+		int moved = size - toIndex;
+		System.arraycopy(timestamps, toIndex, timestamps, fromIndex, moved);
+		System.arraycopy(cumulativeObservations, toIndex, cumulativeObservations, fromIndex, moved);
+		System.arraycopy(initialTimestamps, toIndex, initialTimestamps, fromIndex, moved);
+		System.arraycopy(addresses, toIndex, addresses, fromIndex, moved);
+		int newSize = size - (toIndex - fromIndex);
+		Arrays.fill(addresses, newSize, size, null);
+		size = newSize;
+		for (int i = fromIndex; i < size; i++) {
+			cumulativeObservations[i] -= removed;
+		}
+		rescan();
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException(String.format("%d out of [0, %d)", index, size));
+		}
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= timestamps.length) {
+			return;
+		}
+		int newCapacity = Math.max(capacity, timestamps.length * 2);
+		timestamps = Arrays.copyOf(timestamps, newCapacity);
+		cumulativeObservations = Arrays.copyOf(cumulativeObservations, newCapacity);
+		initialTimestamps = Arrays.copyOf(initialTimestamps, newCapacity);
+		addresses = Arrays.copyOf(addresses, newCapacity);
+	}
+
+	private void rescan() {
+		firstAddressChange = -1;
+		firstGap = -1;
+		for (int i = 1; i < size && (firstAddressChange < 0 || firstGap < 0); i++) {
+			update(i);
+		}
+	}
+
+	private void update(int index) {
+		if (index == 0) {
+			return;
+		}
+		if (firstAddressChange < 0 && !addresses[index].equals(addresses[0])) {
+			firstAddressChange = index;
+		}
+		if (firstGap < 0 && initialTimestamps[index] - initialTimestamps[index - 1] > maxGapNanos) {
+			firstGap = index - 1;
+		}
+	}
+}
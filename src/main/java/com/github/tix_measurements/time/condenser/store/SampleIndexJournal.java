@@ -0,0 +1,227 @@
+package com.github.tix_measurements.time.condenser.store;
+
+import static java.lang.String.format;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persisted {@link SampleIndex} of an installation directory, kept as an append-only journal of added samples and
+ * removed ranges, so that reopening an installation does not read its reports.
+ *
+ * Every change to the directory is followed by a journal append, but a crash in between leaves them apart, and file
+ * timestamps are too coarse to tell. So the journal is closed with a clean marker, and the first change after opening
+ * it again is preceded by an open marker, written and forced before the directory is touched. A journal ending in the
+ * clean marker matches the directory; any other one has to be checked against the reports listed in the directory.
+ *
+ * One append channel is kept open from the first change until the journal is closed.
+ */
+class SampleIndexJournal {
+	static final String FILE_NAME = "tix-index.journal";
+
+	private static final int MAGIC = 0x54495831;
+	private static final byte ADDED = 1;
+	private static final byte REMOVED = 2;
+	private static final byte CLEAN = 3;
+	private static final byte OPEN = 4;
+	private static final int MIN_ENTRIES_BEFORE_REWRITE = 64;
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+	private final Path directory;
+	private final Path path;
+	private int entries;
+	/** Whether the journal on disk ends in the clean marker */
+	private boolean clean;
+	private FileChannel channel;
+
+	SampleIndexJournal(Path directory) {
+		this.directory = directory;
+		this.path = directory.resolve(FILE_NAME);
+		this.entries = 0;
+		this.clean = false;
+	}
+
+	/** Reads the journal back, or returns empty if it is missing or unreadable */
+	Optional<SampleIndex> load() throws IOException {
+		if (!Files.exists(path)) {
+			return Optional.empty();
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+		SampleIndex index = new SampleIndex(Long.MAX_VALUE);
+		int read = 0;
+		boolean cleanEnd = false;
+		try {
+			if (buffer.getInt() != MAGIC) {
+				logger.warn("Ignoring {}, unknown format", path);
+				return Optional.empty();
+			}
+			while (buffer.hasRemaining()) {
+				byte type = buffer.get();
+				cleanEnd = type == CLEAN;
+				if (type == CLEAN || type == OPEN) {
+					continue;
+				} else if (type == ADDED) {
+					long timestamp = buffer.getLong();
+					int observations = buffer.getInt();
+					long initialTimestamp = buffer.getLong();
+					byte[] address = new byte[buffer.get()];
+					buffer.get(address);
+					index.add(timestamp, observations, InetAddress.getByAddress(address), initialTimestamp);
+				} else if (type == REMOVED) {
+					long from = buffer.getLong();
+					long to = buffer.getLong();
+					index.removeRange(index.ceilingIndex(from), index.ceilingIndex(to + 1));
+				} else {
+					throw new IOException(format("Unknown entry type %d", type));
+				}
+				read++;
+			}
+		} catch (BufferUnderflowException | IOException e) {
+			logger.warn("Ignoring {}, unreadable after {} entries", path, read, e);
+			return Optional.empty();
+		}
+		entries = read;
+		clean = cleanEnd;
+		return Optional.of(index);
+	}
+
+	/** Whether the last {@link #load()} found the journal closed cleanly, so that it matches the directory */
+	boolean closedCleanly() {
+		return clean;
+	}
+
+	/**
+	 * Gets the journal ready for a change to the directory. It must be called before the change, so that a crash
+	 * in between leaves a journal that is not marked clean.
+	 */
+	void open() throws IOException {
+		if (channel == null) {
+			boolean created = !Files.exists(path);
+			channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			if (created) {
+				write(out -> out.writeInt(MAGIC));
+			}
+		}
+		if (clean) {
+			write(out -> out.writeByte(OPEN));
+			channel.force(false);
+			clean = false;
+		}
+	}
+
+	/** Forces the entries appended since the last force */
+	void force() throws IOException {
+		if (channel != null) {
+			channel.force(false);
+		}
+	}
+
+	/** Marks the journal clean, if it exists, and releases its channel */
+	void close() throws IOException {
+		try {
+			if (!clean && Files.exists(path)) {
+				if (channel == null) {
+					channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+				}
+				write(out -> out.writeByte(CLEAN));
+				channel.force(false);
+				clean = true;
+			}
+		} finally {
+			closeChannel();
+		}
+	}
+
+	void added(long timestamp, int observations, InetAddress address, long initialTimestamp) throws IOException {
+		append(out -> {
+			byte[] addressBytes = address.getAddress();
+			out.writeByte(ADDED);
+			out.writeLong(timestamp);
+			out.writeInt(observations);
+			out.writeLong(initialTimestamp);
+			out.writeByte(addressBytes.length);
+			out.write(addressBytes);
+		});
+	}
+
+	void removed(long from, long to) throws IOException {
+		append(out -> {
+			out.writeByte(REMOVED);
+			out.writeLong(from);
+			out.writeLong(to);
+		});
+	}
+
+	/** Whether the journal holds enough superseded entries to be worth rewriting from the index */
+	boolean shouldRewrite(SampleIndex index) {
+		return entries > MIN_ENTRIES_BEFORE_REWRITE && entries > 2 * index.size();
+	}
+
+	/** Replaces the journal with one entry per sample of the index */
+	void rewrite(SampleIndex index) throws IOException {
+		closeChannel();
+		Path temporary = directory.resolve(FILE_NAME + ".tmp");
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		for (int i = 0; i < index.size(); i++) {
+			byte[] address = index.address(i).getAddress();
+			out.writeByte(ADDED);
+			out.writeLong(index.timestamp(i));
+			out.writeInt(index.observations(i));
+			out.writeLong(index.initialTimestamp(i));
+			out.writeByte(address.length);
+			out.write(address);
+		}
+		try (FileChannel file = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+			while (buffer.hasRemaining()) {
+				file.write(buffer);
+			}
+			file.force(false);
+		}
+		Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		entries = index.size();
+		clean = false;
+	}
+
+	private void append(JournalWriter writer) throws IOException {
+		open();
+		write(writer);
+		entries++;
+	}
+
+	private void write(JournalWriter writer) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		writer.write(new DataOutputStream(bytes));
+		ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	private void closeChannel() throws IOException {
+		if (channel != null) {
+			channel.close();
+			channel = null;
+		}
+	}
+
+	@FunctionalInterface
+	private interface JournalWriter {
+		void write(DataOutputStream out) throws IOException;
+	}
+}
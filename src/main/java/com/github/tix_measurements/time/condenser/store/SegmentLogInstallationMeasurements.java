@@ -0,0 +1,479 @@
+package com.github.tix_measurements.time.condenser.store;
+
+import static java.lang.String.format;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.tix_measurements.time.condenser.utils.jackson.TixPacketSerDe;
+import com.github.tix_measurements.time.core.data.TixDataPacket;
+
+/**
+ * Stores the packets of an installation as records appended to a sequence of segment files, instead of one file per
+ * packet. Every record carries a CRC and is located through an in-memory offset index rebuilt on load. Records are
+ * read, and parsed, straight from slices of the memory-mapped segment, leaving caching to the OS. Deletions are
+ * logged as tombstones, and space is reclaimed by dropping segments with no live records left, or by compacting
+ * mostly dead ones into the active segment.
+ *
+ * The active segment's channel stays open for the life of the handle, so appends write straight to an open channel.
+ * Each segment's mapping is cached too, and is only remapped when a read reaches past it. Sealed segments no longer
+ * grow, so they keep their mapping but give up their channel. Both are released when the handle is closed or the
+ * segment is deleted.
+ *
+ * Appends only reach the page cache; {@link #sync()} forces the active segment, and the directory once a segment was
+ * created, while rolled segments are forced as they are sealed.
+ */
+public class SegmentLogInstallationMeasurements extends AbstractInstallationMeasurements {
+	public static final String SEGMENT_FILE_PREFIX = "tix-segment";
+	public static final String SEGMENT_FILE_EXTENSION = "log";
+
+	public static final String SEGMENT_FILE_NAME_TEMPLATE = format("%s-%%020d.%s", SEGMENT_FILE_PREFIX, SEGMENT_FILE_EXTENSION);
+	public static final Pattern SEGMENT_ID_CAPTURE = Pattern.compile(format("%s-(\\d+)\\.%s", SEGMENT_FILE_PREFIX, SEGMENT_FILE_EXTENSION));
+
+	public static final long DEFAULT_SEGMENT_MAX_BYTES = 1024L * 1024L;
+
+	private static final byte PACKET_RECORD = 0;
+	private static final byte TOMBSTONE_RECORD = 1;
+	/** Payload length, CRC, record type and first report timestamp */
+	private static final int RECORD_HEADER_BYTES = Integer.BYTES + Integer.BYTES + Byte.BYTES + Long.BYTES;
+	private static final int CRC_OFFSET = Integer.BYTES;
+	private static final int CHECKED_OFFSET = Integer.BYTES + Integer.BYTES;
+	private static final double COMPACTION_LIVE_RATIO = 0.25;
+	private static final ByteBuffer EMPTY_PAYLOAD = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final Path baseReportsPath;
+	private final long userId;
+	private final long installationId;
+	private final ReportFormat reportFormat;
+	private final long segmentMaxBytes;
+	private final TreeMap<Long, Segment> segments;
+	private final Map<Long, Segment> locations;
+	private Segment active;
+	/** Whether segments were created or deleted since the last sync */
+	private boolean directoryChanged;
+
+	public SegmentLogInstallationMeasurements(Path baseReportsPath, Long userId, Long installationId) throws IOException {
+		this(baseReportsPath, userId, installationId, ReportFormat.BINARY, DEFAULT_SEGMENT_MAX_BYTES);
+	}
+
+	public SegmentLogInstallationMeasurements(Path baseReportsPath, Long userId, Long installationId, ReportFormat reportFormat, long segmentMaxBytes) throws IOException {
+		this(baseReportsPath, userId, installationId, reportFormat, segmentMaxBytes, DEFAULT_MAX_WINDOWS_IN_FLIGHT);
+	}
+
+	public SegmentLogInstallationMeasurements(Path baseReportsPath, Long userId, Long installationId, ReportFormat reportFormat, long segmentMaxBytes,
+	                                          int maxWindowsInFlight) throws IOException {
+		super(maxWindowsInFlight);
+		this.baseReportsPath = baseReportsPath;
+		this.userId = userId;
+		this.installationId = installationId;
+		if (segmentMaxBytes <= 0 || segmentMaxBytes > Integer.MAX_VALUE / 2) {
+			throw new IllegalArgumentException(format("Segments must be between 1 and %d bytes long, got %d", Integer.MAX_VALUE / 2, segmentMaxBytes));
+		}
+		this.reportFormat = reportFormat;
+		this.segmentMaxBytes = segmentMaxBytes;
+		this.segments = new TreeMap<>();
+		this.locations = new HashMap<>();
+
+		if (Files.exists(reportDirectory())) {
+			logger.info("Loading segments (user {}, installation {})", userId, installationId);
+			try {
+				replay();
+				importReportFiles();
+				reclaim();
+			} catch (IOException | RuntimeException e) {
+				close();
+				throw e;
+			}
+			logger.info("Segments (user {}, installation {}) successfully loaded", userId, installationId);
+		}
+	}
+
+	@Override
+	public long getUserId() {
+		return userId;
+	}
+
+	@Override
+	public long getInstallationId() {
+		return installationId;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			sync();
+		} finally {
+			for (Segment segment: segments.values()) {
+				segment.close();
+			}
+		}
+	}
+
+	@Override
+	public void sync() throws IOException {
+		if (active != null) {
+			active.force();
+		}
+		if (directoryChanged) {
+			syncDirectory(reportDirectory());
+			directoryChanged = false;
+		}
+	}
+
+	@Override
+	protected boolean appendSample(long timestamp, TixDataPacket packet) throws IOException {
+		if (locations.containsKey(timestamp)) {
+			logger.info("Report {} of installation {} already exists, not writing to disk.", timestamp, installationId);
+			return false;
+		}
+		writePacket(timestamp, ByteBuffer.wrap(reportFormat.serialize(packet)));
+		return true;
+	}
+
+	@Override
+	protected TixDataPacket readSample(long timestamp) throws IOException {
+		Segment segment = locations.get(timestamp);
+		if (segment == null) {
+			throw new IOException(format("Report %d of installation %d not found", timestamp, installationId));
+		}
+		Record record = segment.read(segment.offsets.get(timestamp));
+		if (record == null || record.type != PACKET_RECORD || record.timestamp != timestamp) {
+			throw new IOException(format("Report %d of installation %d is corrupt in %s", timestamp, installationId, segment.path));
+		}
+		return ReportFormat.deserialize(record.payload);
+	}
+
+	@Override
+	protected void deleteSample(long timestamp) throws IOException {
+		Segment segment = locations.remove(timestamp);
+		if (segment == null) {
+			return;
+		}
+		segment.offsets.remove(timestamp);
+		boolean oldest = segment == segments.firstEntry().getValue();
+		if (segment != active && oldest && segment.offsets.isEmpty()) {
+			reclaim();
+			return;
+		}
+		writeRecord(TOMBSTONE_RECORD, timestamp, EMPTY_PAYLOAD);
+		if (segment != active && !oldest && segment.offsets.size() < segment.records * COMPACTION_LIVE_RATIO) {
+			compact(segment);
+		}
+	}
+
+	/** Rebuilds the offset index from the segments on disk, truncating any torn record at the end of a segment */
+	private void replay() throws IOException {
+		List<Path> segmentFiles = new ArrayList<>();
+		try (Stream<Path> paths = Files.list(reportDirectory())) {
+			paths.filter(path -> SEGMENT_ID_CAPTURE.matcher(path.getFileName().toString()).matches())
+				.forEach(segmentFiles::add);
+		}
+		for (Path path: segmentFiles) {
+			Matcher matcher = SEGMENT_ID_CAPTURE.matcher(path.getFileName().toString());
+			matcher.matches();
+			long id = Long.parseLong(matcher.group(1));
+			segments.put(id, new Segment(id, path, Files.size(path)));
+		}
+
+		Map<Long, TixDataPacket> live = new HashMap<>();
+		for (Segment segment: segments.values()) {
+			long offset = 0;
+			while (offset < segment.size) {
+				Record record = segment.read(offset);
+				if (record == null) {
+					logger.warn("Truncating {} at {} of {} bytes after an incomplete or corrupt record", segment.path, offset, segment.size);
+					segment.truncate(offset);
+					break;
+				}
+				Segment previous = locations.remove(record.timestamp);
+				if (previous != null) {
+					previous.offsets.remove(record.timestamp);
+				}
+				live.remove(record.timestamp);
+				if (record.type == PACKET_RECORD) {
+					locations.put(record.timestamp, segment);
+					segment.offsets.put(record.timestamp, offset);
+					live.put(record.timestamp, ReportFormat.deserialize(record.payload));
+				}
+				segment.records++;
+				offset = record.next;
+			}
+		}
+		active = segments.isEmpty() ? null : segments.lastEntry().getValue();
+		for (Segment segment: segments.values()) {
+			if (segment != active) {
+				segment.seal();
+			}
+		}
+		live.entrySet().stream()
+				.sorted(Map.Entry.comparingByKey())
+				.forEach(entry -> restore(entry.getKey(), entry.getValue()));
+	}
+
+	/** Moves reports written by {@link FilesystemInstallationMeasurements} into the log */
+	private void importReportFiles() throws IOException {
+		List<Path> reportFiles = new ArrayList<>();
+		try (Stream<Path> paths = Files.list(reportDirectory())) {
+			paths.filter(path -> FilesystemInstallationMeasurements.REPORTS_TIMESTAMP_CAPTURE.matcher(path.getFileName().toString()).matches())
+				.sorted()
+				.forEach(reportFiles::add);
+		}
+		if (!reportFiles.isEmpty()) {
+			logger.info("Importing {} report files (user {}, installation {})", reportFiles.size(), userId, installationId);
+		}
+		for (Path reportFile: reportFiles) {
+			TixDataPacket packet = ReportFormat.deserialize(Files.readAllBytes(reportFile));
+			long timestamp = TixPacketSerDe.getFirstReportTimestamp(packet);
+			if (appendSample(timestamp, packet)) {
+				restore(timestamp, packet);
+			}
+			Files.delete(reportFile);
+		}
+		Files.deleteIfExists(reportDirectory().resolve(SampleIndexJournal.FILE_NAME));
+	}
+
+	/** Deletes the oldest segments while they hold no live record; their tombstones can only refer to older records */
+	private void reclaim() throws IOException {
+		while (!segments.isEmpty()) {
+			Segment oldest = segments.firstEntry().getValue();
+			if (oldest == active || !oldest.offsets.isEmpty()) {
+				return;
+			}
+			remove(oldest);
+		}
+	}
+
+	/** Copies the live records of a sealed segment, and the tombstones still needed, into the active one */
+	private void compact(Segment segment) throws IOException {
+		logger.info("Compacting {} with {} of {} records live", segment.path, segment.offsets.size(), segment.records);
+		long offset = 0;
+		while (offset < segment.size) {
+			Record record = segment.read(offset);
+			if (record == null) {
+				throw new IOException(format("Segment %s is corrupt at %d", segment.path, offset));
+			}
+			if (record.type == PACKET_RECORD) {
+				Long liveOffset = segment.offsets.get(record.timestamp);
+				if (liveOffset != null && liveOffset == offset) {
+					segment.offsets.remove(record.timestamp);
+					writePacket(record.timestamp, record.payload);
+				}
+			} else if (!locations.containsKey(record.timestamp)) {
+				writeRecord(TOMBSTONE_RECORD, record.timestamp, EMPTY_PAYLOAD);
+			}
+			offset = record.next;
+		}
+		remove(segment);
+	}
+
+	private void writePacket(long timestamp, ByteBuffer payload) throws IOException {
+		long offset = writeRecord(PACKET_RECORD, timestamp, payload);
+		active.offsets.put(timestamp, offset);
+		locations.put(timestamp, active);
+	}
+
+	/** Appends a record to the active segment, rolling it when full, and returns its offset */
+	private long writeRecord(byte type, long timestamp, ByteBuffer payload) throws IOException {
+		int recordSize = RECORD_HEADER_BYTES + payload.remaining();
+		if (active == null || (active.size > 0 && active.size + recordSize > segmentMaxBytes)) {
+			roll();
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(recordSize);
+		buffer.putInt(payload.remaining());
+		buffer.putInt(0);
+		buffer.put(type);
+		buffer.putLong(timestamp);
+		buffer.put(payload.duplicate());
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), CHECKED_OFFSET, recordSize - CHECKED_OFFSET);
+		buffer.putInt(CRC_OFFSET, (int) crc.getValue());
+		buffer.flip();
+
+		long offset = active.size;
+		FileChannel channel = active.channel();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, offset + buffer.position());
+		}
+		active.size += recordSize;
+		active.records++;
+		active.dirty = true;
+		return offset;
+	}
+
+	private void roll() throws IOException {
+		Path reportDirectory = reportDirectory();
+		if (!Files.exists(reportDirectory)) {
+			logger.info("Creating reports directory");
+			Files.createDirectories(reportDirectory, PosixFilePermissions.asFileAttribute(FilesystemInstallationMeasurements.REPORTS_DIRECTORIES_PERMISSIONS));
+		}
+		if (active != null) {
+			active.seal();
+		}
+		long id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+		active = new Segment(id, reportDirectory.resolve(format(SEGMENT_FILE_NAME_TEMPLATE, id)), 0);
+		segments.put(id, active);
+		directoryChanged = true;
+		logger.info("Rolled to segment {}", active.path);
+	}
+
+	private void remove(Segment segment) throws IOException {
+		segment.close();
+		segments.remove(segment.id);
+		Files.deleteIfExists(segment.path);
+		directoryChanged = true;
+		if (segment == active) {
+			active = null;
+		}
+		logger.info("Deleted segment {}", segment.path);
+	}
+
+	private Path reportDirectory() {
+		return baseReportsPath
+				.resolve(Long.toString(userId))
+				.resolve(Long.toString(installationId));
+	}
+
+	private static class Record {
+		private final byte type;
+		private final long timestamp;
+		/** Read-only slice of the mapped segment */
+		private final ByteBuffer payload;
+		private final long next;
+
+		private Record(byte type, long timestamp, ByteBuffer payload, long next) {
+			this.type = type;
+			this.timestamp = timestamp;
+			this.payload = payload;
+			this.next = next;
+		}
+	}
+
+	private static class Segment {
+		private final long id;
+		private final Path path;
+		/** Offsets of the live packet records, by first report timestamp */
+		private final Map<Long, Long> offsets;
+		/** Packet and tombstone records written, live or not */
+		private int records;
+		private long size;
+		private FileChannel channel;
+		private MappedByteBuffer mapped;
+		/** No more records are appended, so no channel is kept open for it */
+		private boolean sealed;
+		/** Whether records were written since the segment was last forced */
+		private boolean dirty;
+
+		private Segment(long id, Path path, long size) {
+			this.id = id;
+			this.path = path;
+			this.offsets = new HashMap<>();
+			this.records = 0;
+			this.size = size;
+		}
+
+		/** Opens the channel on first use, or again after the handle was closed */
+		private FileChannel channel() throws IOException {
+			if (channel == null) {
+				channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			}
+			return channel;
+		}
+
+		/** Reads the record at an offset, or returns null if it is incomplete or fails its CRC */
+		private Record read(long offset) throws IOException {
+			if (offset + RECORD_HEADER_BYTES > size) {
+				return null;
+			}
+			ByteBuffer mapped = mapped(offset + RECORD_HEADER_BYTES);
+			int position = (int) offset;
+			int length = mapped.getInt(position);
+			if (length < 0 || offset + RECORD_HEADER_BYTES + length > size) {
+				return null;
+			}
+			mapped = mapped(offset + RECORD_HEADER_BYTES + length);
+			ByteBuffer payload = slice(mapped, position + RECORD_HEADER_BYTES, length);
+
+			CRC32 crc = new CRC32();
+			crc.update(slice(mapped, position + CHECKED_OFFSET, RECORD_HEADER_BYTES - CHECKED_OFFSET));
+			crc.update(payload.duplicate());
+			if ((int) crc.getValue() != mapped.getInt(position + CRC_OFFSET)) {
+				return null;
+			}
+			return new Record(mapped.get(position + CHECKED_OFFSET), mapped.getLong(position + CHECKED_OFFSET + Byte.BYTES), payload, offset + RECORD_HEADER_BYTES + length);
+		}
+
+		/**
+		 * Returns the cached mapping of the segment, mapping everything written so far if it does not reach the given
+		 * end yet. Replaced mappings are left to the garbage collector.
+		 */
+		private ByteBuffer mapped(long end) throws IOException {
+			if (mapped == null || mapped.capacity() < end) {
+				mapped = channel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+				if (sealed) {
+					closeChannel();
+				}
+			}
+			return mapped;
+		}
+
+		private static ByteBuffer slice(ByteBuffer buffer, int position, int length) {
+			ByteBuffer slice = buffer.duplicate();
+			slice.position(position);
+			slice.limit(position + length);
+			return slice.slice();
+		}
+
+		private void truncate(long offset) throws IOException {
+			mapped = null;
+			channel().truncate(offset);
+			size = offset;
+		}
+
+		/** Closes the channel once the segment stops being the active one, keeping its mapping for reads */
+		private void seal() throws IOException {
+			force();
+			sealed = true;
+			closeChannel();
+		}
+
+		private void force() throws IOException {
+			if (dirty) {
+				channel().force(false);
+				dirty = false;
+			}
+		}
+
+		/** Releases the channel, and the mapping along with it, so that closed handles hold no descriptors or memory */
+		private void close() throws IOException {
+			mapped = null;
+			closeChannel();
+		}
+
+		private void closeChannel() throws IOException {
+			if (channel != null) {
+				channel.close();
+				channel = null;
+			}
+		}
+	}
+}
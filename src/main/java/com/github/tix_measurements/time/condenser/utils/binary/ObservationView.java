@@ -0,0 +1,128 @@
+package com.github.tix_measurements.time.condenser.utils.binary;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+
+import java.util.Arrays;
+
+import com.github.tix_measurements.time.core.data.TixDataPacket;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+
+/**
+ * Reads the observations in a packet message in place. Each one is a big endian record of
+ *
+ * <pre>
+ * unixTimestamp (8) | packetType (1) | packetSize (4)
+ * initialTimestamp (8) | receptionTimestamp (8) | sentTimestamp (8) | finalTimestamp (8)
+ * </pre>
+ *
+ * A view is a cursor that can be re-pointed at any message and record, so one instance serves a whole loop without
+ * allocating or copying anything per observation. It is not safe for concurrent use.
+ */
+public final class ObservationView {
+	public static final int RECORD_BYTES = 45;
+
+	private static final int UNIX_TIMESTAMP_OFFSET = 0;
+	private static final int PACKET_TYPE_OFFSET = UNIX_TIMESTAMP_OFFSET + Long.BYTES;
+	private static final int PACKET_SIZE_OFFSET = PACKET_TYPE_OFFSET + Byte.BYTES;
+	private static final int INITIAL_TIMESTAMP_OFFSET = PACKET_SIZE_OFFSET + Integer.BYTES;
+	private static final int RECEPTION_TIMESTAMP_OFFSET = INITIAL_TIMESTAMP_OFFSET + Long.BYTES;
+	private static final int SENT_TIMESTAMP_OFFSET = RECEPTION_TIMESTAMP_OFFSET + Long.BYTES;
+	private static final int FINAL_TIMESTAMP_OFFSET = SENT_TIMESTAMP_OFFSET + Long.BYTES;
+	private static final byte[] EMPTY = new byte[0];
+
+	private byte[] message = EMPTY;
+	private int size = 0;
+	private int offset = 0;
+
+	/** Points the view at the first observation of a message; trailing bytes short of a whole record are ignored */
+	public ObservationView wrap(byte[] message) {
+		this.message = message;
+		this.size = count(message);
+		this.offset = 0;
+		return this;
+	}
+
+	public ObservationView wrap(TixDataPacket packet) {
+		return wrap(packet.getMessage());
+	}
+
+	/** Number of observations in the wrapped message */
+	public int size() {
+		return size;
+	}
+
+	/** Points the view at the observation with the given index */
+	public ObservationView moveTo(int index) {
+		checkElementIndex(index, size);
+		offset = index * RECORD_BYTES;
+		return this;
+	}
+
+	public long unixTimestamp() {
+		return readLong(message, offset + UNIX_TIMESTAMP_OFFSET);
+	}
+
+	public char packetType() {
+		return (char) message[offset + PACKET_TYPE_OFFSET];
+	}
+
+	public int packetSize() {
+		int at = offset + PACKET_SIZE_OFFSET;
+		return Ints.fromBytes(message[at], message[at + 1], message[at + 2], message[at + 3]);
+	}
+
+	public long initialTimestamp() {
+		return readLong(message, offset + INITIAL_TIMESTAMP_OFFSET);
+	}
+
+	public long receptionTimestamp() {
+		return readLong(message, offset + RECEPTION_TIMESTAMP_OFFSET);
+	}
+
+	public long sentTimestamp() {
+		return readLong(message, offset + SENT_TIMESTAMP_OFFSET);
+	}
+
+	public long finalTimestamp() {
+		return readLong(message, offset + FINAL_TIMESTAMP_OFFSET);
+	}
+
+	/** Unix timestamps of every observation, in message order */
+	public long[] unixTimestamps() {
+		long[] timestamps = new long[size];
+		unixTimestamps(timestamps, 0);
+		return timestamps;
+	}
+
+	/** Copies the unix timestamps of every observation into an existing array, starting at the given position */
+	public void unixTimestamps(long[] destination, int destinationOffset) {
+		if (destinationOffset < 0 || destinationOffset + size > destination.length) {
+			throw new IndexOutOfBoundsException(String.format("%d timestamps do not fit at %d of %d", size, destinationOffset, destination.length));
+		}
+		for (int i = 0, at = UNIX_TIMESTAMP_OFFSET; i < size; i++, at += RECORD_BYTES) {
+			destination[destinationOffset + i] = readLong(message, at);
+		}
+	}
+
+	/** Number of whole observations in a message */
+	public static int count(byte[] message) {
+		return message.length / RECORD_BYTES;
+	}
+
+	/**
+	 * Unix timestamp of the first observation in a message, which identifies the packet. Messages too short to hold
+	 * one read as if padded with zeros, as they always have.
+	 */
+	public static long firstUnixTimestamp(byte[] message) {
+		if (message.length < Long.BYTES) {
+			return readLong(Arrays.copyOf(message, Long.BYTES), UNIX_TIMESTAMP_OFFSET);
+		}
+		return readLong(message, UNIX_TIMESTAMP_OFFSET);
+	}
+
+	private static long readLong(byte[] bytes, int at) {
+		return Longs.fromBytes(bytes[at], bytes[at + 1], bytes[at + 2], bytes[at + 3],
+				bytes[at + 4], bytes[at + 5], bytes[at + 6], bytes[at + 7]);
+	}
+}
@@ -0,0 +1,132 @@
+package com.github.tix_measurements.time.condenser.utils.binary;
+
+import static java.lang.String.format;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import com.github.tix_measurements.time.core.data.TixDataPacket;
+
+/**
+ * Versioned binary layout for stored packets. All numbers are big endian.
+ *
+ * <pre>
+ * magic (1) | version (1)
+ * userId (8) | installationId (8)
+ * initialTimestamp (8) | receptionTimestamp (8) | sentTimestamp (8) | finalTimestamp (8)
+ * from: address length (1) | address (4 or 16) | port (2)
+ * to:   address length (1) | address (4 or 16) | port (2)
+ * publicKey length (4) | signature length (4) | message length (4)
+ * publicKey | signature | message
+ * </pre>
+ *
+ * The message, made of {@link ObservationView} records, is kept as is instead of Base64 encoded.
+ */
+public class TixPacketBinaryCodec {
+	/** Never the first byte of a JSON document, so both formats can be told apart */
+	public static final byte MAGIC = (byte) 0xB7;
+	public static final byte VERSION = 1;
+
+	private static final int FIXED_HEADER_BYTES = 2 + 6 * Long.BYTES + 3 * Integer.BYTES;
+	private static final int MAX_ADDRESS_BYTES = 16;
+
+	public static boolean isBinary(ByteBuffer buffer) {
+		return buffer.remaining() > 0 && buffer.get(buffer.position()) == MAGIC;
+	}
+
+	public byte[] serialize(TixDataPacket packet) {
+		byte[] publicKey = packet.getPublicKey();
+		byte[] signature = packet.getSignature();
+		byte[] message = packet.getMessage();
+		byte[] from = packet.getFrom().getAddress().getAddress();
+		byte[] to = packet.getTo().getAddress().getAddress();
+
+		ByteBuffer buffer = ByteBuffer.allocate(FIXED_HEADER_BYTES
+				+ 2 * (Byte.BYTES + Short.BYTES) + from.length + to.length
+				+ publicKey.length + signature.length + message.length);
+		buffer.put(MAGIC);
+		buffer.put(VERSION);
+		buffer.putLong(packet.getUserId());
+		buffer.putLong(packet.getInstallationId());
+		buffer.putLong(packet.getInitialTimestamp());
+		buffer.putLong(packet.getReceptionTimestamp());
+		buffer.putLong(packet.getSentTimestamp());
+		buffer.putLong(packet.getFinalTimestamp());
+		putAddress(buffer, from, packet.getFrom().getPort());
+		putAddress(buffer, to, packet.getTo().getPort());
+		buffer.putInt(publicKey.length);
+		buffer.putInt(signature.length);
+		buffer.putInt(message.length);
+		buffer.put(publicKey);
+		buffer.put(signature);
+		buffer.put(message);
+		return buffer.array();
+	}
+
+	public TixDataPacket deserialize(byte[] bytes) throws IOException {
+		return deserialize(ByteBuffer.wrap(bytes));
+	}
+
+	/** Reads a packet from the remaining bytes of a buffer, leaving the buffer's position untouched */
+	public TixDataPacket deserialize(ByteBuffer source) throws IOException {
+		ByteBuffer buffer = source.duplicate();
+		try {
+			if (buffer.get() != MAGIC) {
+				throw new IOException("Not a binary packet record");
+			}
+			byte version = buffer.get();
+			if (version != VERSION) {
+				throw new IOException(format("Unsupported binary packet record version %d", version));
+			}
+			long userId = buffer.getLong();
+			long installationId = buffer.getLong();
+			long initialTimestamp = buffer.getLong();
+			long receptionTimestamp = buffer.getLong();
+			long sentTimestamp = buffer.getLong();
+			long finalTimestamp = buffer.getLong();
+			InetSocketAddress from = getAddress(buffer);
+			InetSocketAddress to = getAddress(buffer);
+			byte[] publicKey = new byte[checkedLength(buffer, buffer.getInt())];
+			byte[] signature = new byte[checkedLength(buffer, buffer.getInt())];
+			byte[] message = new byte[checkedLength(buffer, buffer.getInt())];
+			buffer.get(publicKey);
+			buffer.get(signature);
+			buffer.get(message);
+
+			TixDataPacket packet = new TixDataPacket(from, to, initialTimestamp, userId, installationId, publicKey, message, signature);
+			packet.setReceptionTimestamp(receptionTimestamp);
+			packet.setSentTimestamp(sentTimestamp);
+			packet.setFinalTimestamp(finalTimestamp);
+			return packet;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated binary packet record", e);
+		}
+	}
+
+	private static void putAddress(ByteBuffer buffer, byte[] address, int port) {
+		buffer.put((byte) address.length);
+		buffer.put(address);
+		buffer.putShort((short) port);
+	}
+
+	private static InetSocketAddress getAddress(ByteBuffer buffer) throws IOException {
+		int length = buffer.get();
+		if (length <= 0 || length > MAX_ADDRESS_BYTES) {
+			throw new IOException(format("Invalid address length %d", length));
+		}
+		byte[] address = new byte[length];
+		buffer.get(address);
+		int port = buffer.getShort() & 0xFFFF;
+		return new InetSocketAddress(InetAddress.getByAddress(address), port);
+	}
+
+	private static int checkedLength(ByteBuffer buffer, int length) throws IOException {
+		if (length < 0 || length > buffer.remaining()) {
+			throw new IOException(format("Invalid field length %d", length));
+		}
+		return length;
+	}
+}
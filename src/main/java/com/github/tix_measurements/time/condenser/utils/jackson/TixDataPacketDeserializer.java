@@ -0,0 +1,123 @@
+package com.github.tix_measurements.time.condenser.utils.jackson;
+
+import static com.github.tix_measurements.time.condenser.utils.jackson.TixDataPacketSerializer.FINAL_TIMESTAMP;
+import static com.github.tix_measurements.time.condenser.utils.jackson.TixDataPacketSerializer.FROM;
+import static com.github.tix_measurements.time.condenser.utils.jackson.TixDataPacketSerializer.INITIAL_TIMESTAMP;
+import static com.github.tix_measurements.time.condenser.utils.jackson.TixDataPacketSerializer.INSTALLATION_ID;
+import static com.github.tix_measurements.time.condenser.utils.jackson.TixDataPacketSerializer.MESSAGE;
+import static com.github.tix_measurements.time.condenser.utils.jackson.TixDataPacketSerializer.PUBLIC_KEY;
+import static com.github.tix_measurements.time.condenser.utils.jackson.TixDataPacketSerializer.RECEPTION_TIMESTAMP;
+import static com.github.tix_measurements.time.condenser.utils.jackson.TixDataPacketSerializer.SENT_TIMESTAMP;
+import static com.github.tix_measurements.time.condenser.utils.jackson.TixDataPacketSerializer.SIGNATURE;
+import static com.github.tix_measurements.time.condenser.utils.jackson.TixDataPacketSerializer.TO;
+import static com.github.tix_measurements.time.condenser.utils.jackson.TixDataPacketSerializer.USER_ID;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.deser.ResolvableDeserializer;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.github.tix_measurements.time.core.data.TixDataPacket;
+
+/**
+ * Streaming deserializer for the documents written by {@link TixDataPacketSerializer}, accepting properties in any
+ * order. Missing properties default as with bean deserialization; unknown ones are skipped.
+ */
+public class TixDataPacketDeserializer extends StdDeserializer<TixDataPacket> implements ResolvableDeserializer {
+	private static final long serialVersionUID = 1L;
+
+	private JsonDeserializer<Object> addressDeserializer;
+
+	public TixDataPacketDeserializer() {
+		super(TixDataPacket.class);
+	}
+
+	@Override
+	public void resolve(DeserializationContext context) throws JsonMappingException {
+		addressDeserializer = context.findRootValueDeserializer(context.constructType(InetSocketAddress.class));
+	}
+
+	@Override
+	public TixDataPacket deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+		JsonToken token = parser.getCurrentToken();
+		if (token == JsonToken.START_OBJECT) {
+			token = parser.nextToken();
+		}
+		InetSocketAddress from = null;
+		InetSocketAddress to = null;
+		long initialTimestamp = 0;
+		long userId = 0;
+		long installationId = 0;
+		byte[] publicKey = null;
+		byte[] message = null;
+		byte[] signature = null;
+		long receptionTimestamp = 0;
+		long sentTimestamp = 0;
+		long finalTimestamp = 0;
+		for (; token == JsonToken.FIELD_NAME; token = parser.nextToken()) {
+			String name = parser.getCurrentName();
+			token = parser.nextToken();
+			switch (name) {
+			case FROM:
+				from = readAddress(parser, context, token);
+				break;
+			case TO:
+				to = readAddress(parser, context, token);
+				break;
+			case INITIAL_TIMESTAMP:
+				initialTimestamp = _parseLongPrimitive(parser, context);
+				break;
+			case USER_ID:
+				userId = _parseLongPrimitive(parser, context);
+				break;
+			case INSTALLATION_ID:
+				installationId = _parseLongPrimitive(parser, context);
+				break;
+			case PUBLIC_KEY:
+				publicKey = readBinary(parser, context, token);
+				break;
+			case MESSAGE:
+				message = readBinary(parser, context, token);
+				break;
+			case SIGNATURE:
+				signature = readBinary(parser, context, token);
+				break;
+			case RECEPTION_TIMESTAMP:
+				receptionTimestamp = _parseLongPrimitive(parser, context);
+				break;
+			case SENT_TIMESTAMP:
+				sentTimestamp = _parseLongPrimitive(parser, context);
+				break;
+			case FINAL_TIMESTAMP:
+				finalTimestamp = _parseLongPrimitive(parser, context);
+				break;
+			default:
+				parser.skipChildren();
+			}
+		}
+		if (token != JsonToken.END_OBJECT) {
+			throw context.wrongTokenException(parser, JsonToken.END_OBJECT, "Expected end of TixDataPacket");
+		}
+		TixDataPacket packet = new TixDataPacket(from, to, initialTimestamp, userId, installationId, publicKey, message, signature);
+		packet.setReceptionTimestamp(receptionTimestamp);
+		packet.setSentTimestamp(sentTimestamp);
+		packet.setFinalTimestamp(finalTimestamp);
+		return packet;
+	}
+
+	private InetSocketAddress readAddress(JsonParser parser, DeserializationContext context, JsonToken token) throws IOException {
+		return token == JsonToken.VALUE_NULL ? null : (InetSocketAddress) addressDeserializer.deserialize(parser, context);
+	}
+
+	private static byte[] readBinary(JsonParser parser, DeserializationContext context, JsonToken token) throws IOException {
+		if (token == JsonToken.VALUE_NULL) {
+			return null;
+		}
+		return parser.getBinaryValue(context.getBase64Variant());
+	}
+}
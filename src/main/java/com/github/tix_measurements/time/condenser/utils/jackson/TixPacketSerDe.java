@@ -1,20 +1,39 @@
 package com.github.tix_measurements.time.condenser.utils.jackson;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import com.github.tix_measurements.time.condenser.utils.binary.ObservationView;
 import com.github.tix_measurements.time.core.data.TixDataPacket;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
+/**
+ * Reads and writes {@link TixDataPacket}s as JSON. Every instance shares a single, thread-safe mapper using the
+ * streaming {@link TixDataPacketSerializer} and {@link TixDataPacketDeserializer}, so {@link #shared()} can be used
+ * from anywhere instead of creating new ones.
+ */
 public class TixPacketSerDe {
+	private static final ObjectMapper MAPPER = new ObjectMapper()
+			.addMixIn(TixDataPacket.class, TixDataPacketMixin.class)
+			.registerModule(new SimpleModule(TixPacketSerDe.class.getSimpleName())
+					.addSerializer(TixDataPacket.class, new TixDataPacketSerializer())
+					.addDeserializer(TixDataPacket.class, new TixDataPacketDeserializer()));
+	private static final TixPacketSerDe SHARED = new TixPacketSerDe();
+
 	private final ObjectMapper mapper;
 
 	public TixPacketSerDe() {
-		this.mapper = new ObjectMapper().addMixIn(TixDataPacket.class, TixDataPacketMixin.class);
+		this.mapper = MAPPER;
+	}
+
+	public static TixPacketSerDe shared() {
+		return SHARED;
 	}
 
 	public byte[] serialize(TixDataPacket packet) throws JsonProcessingException {
@@ -25,28 +44,30 @@ public class TixPacketSerDe {
 		return mapper.writeValueAsBytes(list);
 	}
 
+	/** Writes a list straight into a stream, without building it in memory first; the stream is left open */
+	public void serializeList(List<TixDataPacket> list, OutputStream out) throws IOException {
+		try (JsonGenerator generator = mapper.getFactory().createGenerator(out).disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)) {
+			mapper.writeValue(generator, list);
+		}
+	}
+
 	public TixDataPacket deserialize(byte[] bytes) throws IOException {
 		return mapper.readValue(bytes, TixDataPacket.class);
 	}
+
+	/** Reads a packet from the remaining bytes of a buffer, without copying them out of it first */
+	public TixDataPacket deserialize(ByteBuffer buffer) throws IOException {
+		if (buffer.hasArray()) {
+			return mapper.readValue(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), TixDataPacket.class);
+		}
+		return mapper.readValue(new ByteBufferBackedInputStream(buffer.duplicate()), TixDataPacket.class);
+	}
 	
 	public static long getFirstReportTimestamp(TixDataPacket packet) {
-		byte[] bytes = Arrays.copyOfRange(packet.getMessage(), 0, Long.BYTES);
-		ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
-		buffer.put(bytes);
-		buffer.flip();
-		return buffer.getLong();
+		return ObservationView.firstUnixTimestamp(packet.getMessage());
 	}
-	
-	public static List<Long> getReportTimestamps(TixDataPacket packet) {
-		byte[] message = packet.getMessage();
-		ByteBuffer buffer = ByteBuffer.allocate(message.length);
-		buffer.put(message);
-		buffer.flip();
-		
-		List<Long> timestamps = new ArrayList<>(message.length / 45);
-		for (int i = 0; i < message.length; i += 45) {
-			timestamps.add(buffer.getLong(i));
-		}
-		return timestamps;
+
+	public static long[] getReportTimestamps(TixDataPacket packet) {
+		return new ObservationView().wrap(packet).unixTimestamps();
 	}
 }
@@ -0,0 +1,88 @@
+package com.github.tix_measurements.time.condenser.handlers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import com.github.tix_measurements.time.condenser.sender.RabbitSubmitter;
+import com.github.tix_measurements.time.condenser.sender.SubmittablePacketSet;
+import com.github.tix_measurements.time.condenser.store.MeasurementStore;
+
+public class TestBacklogDrain {
+	private MeasurementStore measurementStore;
+	private RabbitSubmitter submitter;
+	private BacklogDrain drain;
+
+	@Before
+	public void setup() {
+		measurementStore = mock(MeasurementStore.class);
+		submitter = mock(RabbitSubmitter.class);
+		drain = new BacklogDrain(measurementStore, submitter, 2, 1000.0);
+	}
+
+	@After
+	public void teardown() {
+		drain.destroy();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructorWithInvalidThreads() {
+		new BacklogDrain(measurementStore, submitter, 0, 1.0);
+	}
+
+	@Test
+	public void testDrainsEveryInstallation() throws Exception {
+		Map<Long, Long> installations = new HashMap<>();
+		installations.put(1L, 1L);
+		installations.put(2L, 1L);
+		installations.put(3L, 2L);
+		SubmittablePacketSet first = mock(SubmittablePacketSet.class);
+		SubmittablePacketSet second = mock(SubmittablePacketSet.class);
+		when(measurementStore.storedInstallations()).thenReturn(installations);
+		when(measurementStore.checkAndExtract(1L, 1L)).thenReturn(Optional.of(first));
+		when(measurementStore.checkAndExtract(1L, 2L)).thenReturn(Optional.empty());
+		when(measurementStore.checkAndExtract(2L, 3L)).thenThrow(new IOException("unreadable"));
+		when(first.following()).thenReturn(Optional.empty());
+		when(second.following()).thenReturn(Optional.empty());
+		when(submitter.submit(first)).thenReturn(CompletableFuture.completedFuture(Optional.of(second)));
+		when(submitter.submit(second)).thenReturn(CompletableFuture.completedFuture(Optional.empty()));
+
+		drain.start().get(10, TimeUnit.SECONDS);
+
+		verify(submitter, times(1)).submit(first);
+		verify(submitter, times(1)).submit(second);
+		Map<String, Number> metrics = drain.metrics().stream().collect(Collectors.toMap(Metric::getName, Metric::getValue));
+		assertThat(metrics.get("backlog-drain.installations").longValue()).isEqualTo(3);
+		assertThat(metrics.get("backlog-drain.installations.drained").longValue()).isEqualTo(3);
+		assertThat(metrics.get("backlog-drain.installations.failed").longValue()).isEqualTo(1);
+		assertThat(metrics.get("backlog-drain.sets.submitted").longValue()).isEqualTo(2);
+		assertThat(metrics.get("backlog-drain.running").intValue()).isEqualTo(0);
+	}
+
+	@Test
+	public void testStartsOnce() throws Exception {
+		when(measurementStore.storedInstallations()).thenReturn(new HashMap<>());
+
+		assertThat(drain.start()).isSameAs(drain.start());
+		drain.start().get(10, TimeUnit.SECONDS);
+
+		verify(measurementStore, times(1)).storedInstallations();
+		verify(submitter, times(0)).submit(any());
+	}
+}
@@ -0,0 +1,69 @@
+package com.github.tix_measurements.time.condenser.handlers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestBackpressure {
+	private Backpressure backpressure;
+
+	@Before
+	public void setup() {
+		backpressure = new Backpressure(4, 2);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testResumeMustBeBelowMaximum() {
+		new Backpressure(4, 4);
+	}
+
+	@Test
+	public void testPausesAtMaximumAndResumesAtLowWatermark() throws InterruptedException {
+		for (int i = 0; i < 4; i++) {
+			backpressure.acquire();
+		}
+		assertThat(backpressure.isPaused()).isTrue();
+		assertThat(backpressure.pauses()).isEqualTo(1);
+
+		CountDownLatch admitted = new CountDownLatch(1);
+		Thread consumer = new Thread(() -> {
+			try {
+				backpressure.acquire();
+				admitted.countDown();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		consumer.start();
+
+		backpressure.release(1);
+		assertThat(admitted.await(100, TimeUnit.MILLISECONDS)).isFalse();
+		assertThat(backpressure.isPaused()).isTrue();
+
+		backpressure.release(1);
+		assertThat(admitted.await(5, TimeUnit.SECONDS)).isTrue();
+		assertThat(backpressure.isPaused()).isFalse();
+		assertThat(backpressure.inFlight()).isEqualTo(3);
+		assertThat(backpressure.pausedMillis()).isGreaterThanOrEqualTo(100);
+		consumer.join();
+	}
+
+	@Test
+	public void testInterruptedWhilePaused() throws InterruptedException {
+		for (int i = 0; i < 4; i++) {
+			backpressure.acquire();
+		}
+		Thread.currentThread().interrupt();
+		try {
+			backpressure.acquire();
+		} catch (InterruptedException e) {
+			assertThat(backpressure.inFlight()).isEqualTo(4);
+			return;
+		}
+		throw new AssertionError("acquire did not wait while paused");
+	}
+}
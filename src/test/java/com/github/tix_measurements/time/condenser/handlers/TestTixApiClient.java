@@ -0,0 +1,64 @@
+package com.github.tix_measurements.time.condenser.handlers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.client.MockRestServiceServer;
+
+public class TestTixApiClient {
+	private static final String USER_URL = "http://localhost:80/api/user/1";
+
+	private TixApiClient apiClient;
+	private MockRestServiceServer server;
+
+	@Before
+	public void setup() {
+		apiClient = new TixApiClient();
+		server = MockRestServiceServer.createServer(apiClient.getRestTemplate());
+	}
+
+	@Test
+	public void testConstructor() {
+		assertThatExceptionOfType(IllegalArgumentException.class)
+				.isThrownBy(() -> new TixApiClient(0, 1, 1, 1, 1));
+		assertThatExceptionOfType(IllegalArgumentException.class)
+				.isThrownBy(() -> new TixApiClient(1, 0, 1, 1, 1));
+		assertThatExceptionOfType(IllegalArgumentException.class)
+				.isThrownBy(() -> new TixApiClient(1, 1, 0, 1, 1));
+		assertThatExceptionOfType(IllegalArgumentException.class)
+				.isThrownBy(() -> new TixApiClient(1, 1, 1, 0, 1));
+		assertThatExceptionOfType(IllegalArgumentException.class)
+				.isThrownBy(() -> new TixApiClient(1, 1, 1, 1, -1));
+	}
+
+	@Test
+	public void testEndpointOf() {
+		assertThat(TixApiClient.endpointOf(URI.create("http://localhost/api/user/1"))).isEqualTo("user");
+		assertThat(TixApiClient.endpointOf(URI.create("http://localhost/api/user/1/installation/2"))).isEqualTo("user.installation");
+	}
+
+	@Test
+	public void testRequestIsMeasured() {
+		server.expect(requestTo(USER_URL))
+				.andRespond(withSuccess("{}", MediaType.APPLICATION_JSON));
+
+		apiClient.getRestTemplate().getForObject(USER_URL, String.class);
+		server.verify();
+
+		Map<String, Number> metrics = apiClient.metrics().stream()
+				.collect(Collectors.toMap(Metric::getName, Metric::getValue));
+		assertThat(metrics.get("tix-api.requests.user.count")).isEqualTo(1L);
+		assertThat(metrics.get("tix-api.requests.active")).isEqualTo(0);
+		assertThat(metrics.get("tix-api.requests.rejected")).isEqualTo(0L);
+	}
+}
@@ -18,6 +18,10 @@ import org.springframework.test.web.client.MockRestServiceServer;
 import java.io.IOException;
 import java.net.UnknownHostException;
 import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import static java.lang.String.format;
 import static org.assertj.core.api.Assertions.assertThat;
@@ -44,7 +48,7 @@ public class TestTixPacketValidator {
 	@Before
 	public void setup() throws InterruptedException {
 		packageValidator = new TixPacketValidator(USE_HTTPS, API_HOST, API_PORT);
-		server = MockRestServiceServer.createServer(packageValidator.getApiClient());
+		server = MockRestServiceServer.bindTo(packageValidator.getApiClient()).ignoreExpectOrder(true).build();
 	}
 
 	@Test
@@ -66,6 +70,9 @@ public class TestTixPacketValidator {
 		server.expect(requestTo(format("http://%s:%d/api/user/%d", API_HOST, API_PORT, USER_ID)))
 				.andExpect(method(HttpMethod.GET))
 				.andRespond(withSuccess(mapper.writeValueAsString(new TixUser(USER_ID, USERNAME, true)), MediaType.APPLICATION_JSON));
+		server.expect(requestTo(format("http://%s:%d/api/user/%d/installation", API_HOST, API_PORT, USER_ID)))
+				.andExpect(method(HttpMethod.GET))
+				.andRespond(withStatus(HttpStatus.NOT_FOUND));
 		server.expect(requestTo(format("http://%s:%d/api/user/%d/installation/%d", API_HOST, API_PORT, USER_ID, INSTALLATION_ID)))
 				.andExpect(method(HttpMethod.GET))
 				.andRespond(withSuccess(
@@ -83,6 +90,9 @@ public class TestTixPacketValidator {
 		server.expect(requestTo(format("http://%s:%d/api/user/%d", API_HOST, API_PORT, otherUserId)))
 				.andExpect(method(HttpMethod.GET))
 				.andRespond(withStatus(HttpStatus.NOT_FOUND));
+		server.expect(requestTo(format("http://%s:%d/api/user/%d/installation", API_HOST, API_PORT, otherUserId)))
+				.andExpect(method(HttpMethod.GET))
+				.andRespond(withStatus(HttpStatus.NOT_FOUND));
 		
 		assertFalse(packageValidator.validUserAndInstallation(packet));
 		server.verify();
@@ -96,6 +106,11 @@ public class TestTixPacketValidator {
 		server.expect(requestTo(format("http://%s:%d/api/user/%d", API_HOST, API_PORT, otherUserId)))
 				.andExpect(method(HttpMethod.GET))
 				.andRespond(withSuccess(mapper.writeValueAsString(new TixUser(otherUserId, USERNAME, false)), MediaType.APPLICATION_JSON));
+		server.expect(requestTo(format("http://%s:%d/api/user/%d/installation", API_HOST, API_PORT, otherUserId)))
+				.andExpect(method(HttpMethod.GET))
+				.andRespond(withSuccess(
+						mapper.writeValueAsString(Arrays.asList(new TixInstallation(INSTALLATION_ID, INSTALLATION_NAME, TixCoreUtils.ENCODER.apply(packet.getPublicKey())))),
+						MediaType.APPLICATION_JSON));
 		
 		assertFalse(packageValidator.validUserAndInstallation(packet));
 		server.verify();
@@ -109,6 +124,9 @@ public class TestTixPacketValidator {
 		server.expect(requestTo(format("http://%s:%d/api/user/%d", API_HOST, API_PORT, USER_ID)))
 				.andExpect(method(HttpMethod.GET))
 				.andRespond(withSuccess(mapper.writeValueAsString(new TixUser(USER_ID, USERNAME, true)), MediaType.APPLICATION_JSON));
+		server.expect(requestTo(format("http://%s:%d/api/user/%d/installation", API_HOST, API_PORT, USER_ID)))
+				.andExpect(method(HttpMethod.GET))
+				.andRespond(withStatus(HttpStatus.NOT_FOUND));
 		server.expect(requestTo(format("http://%s:%d/api/user/%d/installation/%d", API_HOST, API_PORT, USER_ID, otherInstallationId)))
 				.andExpect(method(HttpMethod.GET))
 				.andRespond(withStatus(HttpStatus.NOT_FOUND));
@@ -125,6 +143,9 @@ public class TestTixPacketValidator {
 		server.expect(requestTo(format("http://%s:%d/api/user/%d", API_HOST, API_PORT, USER_ID)))
 				.andExpect(method(HttpMethod.GET))
 				.andRespond(withSuccess(mapper.writeValueAsString(new TixUser(USER_ID, USERNAME, true)), MediaType.APPLICATION_JSON));
+		server.expect(requestTo(format("http://%s:%d/api/user/%d/installation", API_HOST, API_PORT, USER_ID)))
+				.andExpect(method(HttpMethod.GET))
+				.andRespond(withStatus(HttpStatus.NOT_FOUND));
 		server.expect(requestTo(format("http://%s:%d/api/user/%d/installation/%d", API_HOST, API_PORT, USER_ID, INSTALLATION_ID)))
 				.andExpect(method(HttpMethod.GET))
 				.andRespond(withSuccess(
@@ -134,4 +155,94 @@ public class TestTixPacketValidator {
 		assertFalse(packageValidator.validUserAndInstallation(packet));
 		server.verify();
 	}
+
+	@Test
+	public void testValidationIsCached() throws JsonProcessingException {
+		TixDataPacket packet = PacketGenerator.defaults().withUserId(USER_ID).withInstallationId(INSTALLATION_ID).withKeyPair(INSTALLATION_KEY_PAIR).build();
+		ObjectMapper mapper = new ObjectMapper();
+		server.expect(requestTo(format("http://%s:%d/api/user/%d", API_HOST, API_PORT, USER_ID)))
+				.andExpect(method(HttpMethod.GET))
+				.andRespond(withSuccess(mapper.writeValueAsString(new TixUser(USER_ID, USERNAME, true)), MediaType.APPLICATION_JSON));
+		server.expect(requestTo(format("http://%s:%d/api/user/%d/installation", API_HOST, API_PORT, USER_ID)))
+				.andExpect(method(HttpMethod.GET))
+				.andRespond(withStatus(HttpStatus.NOT_FOUND));
+		server.expect(requestTo(format("http://%s:%d/api/user/%d/installation/%d", API_HOST, API_PORT, USER_ID, INSTALLATION_ID)))
+				.andExpect(method(HttpMethod.GET))
+				.andRespond(withSuccess(
+						mapper.writeValueAsString(new TixInstallation(INSTALLATION_ID, INSTALLATION_NAME,TixCoreUtils.ENCODER.apply(INSTALLATION_KEY_PAIR.getPublic().getEncoded()))),
+						MediaType.APPLICATION_JSON));
+
+		assertThat(packageValidator.validUserAndInstallation(packet)).isTrue();
+		assertThat(packageValidator.validUserAndInstallation(packet)).isTrue();
+		server.verify();
+		assertThat(packageValidator.getCacheStats().hitCount()).isEqualTo(1);
+		assertThat(packageValidator.getCacheStats().missCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void testNotFoundIsCached() {
+		long otherUserId = USER_ID + 1L;
+		TixDataPacket packet = PacketGenerator.createNewPacket(otherUserId, INSTALLATION_ID);
+		server.expect(requestTo(format("http://%s:%d/api/user/%d", API_HOST, API_PORT, otherUserId)))
+				.andExpect(method(HttpMethod.GET))
+				.andRespond(withStatus(HttpStatus.NOT_FOUND));
+		server.expect(requestTo(format("http://%s:%d/api/user/%d/installation", API_HOST, API_PORT, otherUserId)))
+				.andExpect(method(HttpMethod.GET))
+				.andRespond(withStatus(HttpStatus.NOT_FOUND));
+
+		assertFalse(packageValidator.validUserAndInstallation(packet));
+		assertFalse(packageValidator.validUserAndInstallation(packet));
+		server.verify();
+		assertThat(packageValidator.getCacheStats().hitCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void testConcurrentValidationsShareLookup() throws JsonProcessingException {
+		TixDataPacket packet = PacketGenerator.defaults().withUserId(USER_ID).withInstallationId(INSTALLATION_ID).withKeyPair(INSTALLATION_KEY_PAIR).build();
+		ObjectMapper mapper = new ObjectMapper();
+		server.expect(requestTo(format("http://%s:%d/api/user/%d", API_HOST, API_PORT, USER_ID)))
+				.andExpect(method(HttpMethod.GET))
+				.andRespond(withSuccess(mapper.writeValueAsString(new TixUser(USER_ID, USERNAME, true)), MediaType.APPLICATION_JSON));
+		server.expect(requestTo(format("http://%s:%d/api/user/%d/installation", API_HOST, API_PORT, USER_ID)))
+				.andExpect(method(HttpMethod.GET))
+				.andRespond(withStatus(HttpStatus.NOT_FOUND));
+		server.expect(requestTo(format("http://%s:%d/api/user/%d/installation/%d", API_HOST, API_PORT, USER_ID, INSTALLATION_ID)))
+				.andExpect(method(HttpMethod.GET))
+				.andRespond(withSuccess(
+						mapper.writeValueAsString(new TixInstallation(INSTALLATION_ID, INSTALLATION_NAME,TixCoreUtils.ENCODER.apply(INSTALLATION_KEY_PAIR.getPublic().getEncoded()))),
+						MediaType.APPLICATION_JSON));
+
+		List<CompletableFuture<Boolean>> validations = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			validations.add(packageValidator.validUserAndInstallationAsync(packet));
+		}
+		for (CompletableFuture<Boolean> validation: validations) {
+			assertThat(validation.join()).isTrue();
+		}
+		server.verify();
+	}
+
+	@Test
+	public void testInstallationsArePrefetched() throws JsonProcessingException {
+		long otherInstallationId = INSTALLATION_ID + 1L;
+		KeyPair otherKeyPair = TixCoreUtils.NEW_KEY_PAIR.get();
+		TixDataPacket packet = PacketGenerator.defaults().withUserId(USER_ID).withInstallationId(INSTALLATION_ID).withKeyPair(INSTALLATION_KEY_PAIR).build();
+		TixDataPacket otherPacket = PacketGenerator.defaults().withUserId(USER_ID).withInstallationId(otherInstallationId).withKeyPair(otherKeyPair).build();
+		ObjectMapper mapper = new ObjectMapper();
+		server.expect(requestTo(format("http://%s:%d/api/user/%d", API_HOST, API_PORT, USER_ID)))
+				.andExpect(method(HttpMethod.GET))
+				.andRespond(withSuccess(mapper.writeValueAsString(new TixUser(USER_ID, USERNAME, true)), MediaType.APPLICATION_JSON));
+		server.expect(requestTo(format("http://%s:%d/api/user/%d/installation", API_HOST, API_PORT, USER_ID)))
+				.andExpect(method(HttpMethod.GET))
+				.andRespond(withSuccess(
+						mapper.writeValueAsString(Arrays.asList(
+								new TixInstallation(INSTALLATION_ID, INSTALLATION_NAME, TixCoreUtils.ENCODER.apply(INSTALLATION_KEY_PAIR.getPublic().getEncoded())),
+								new TixInstallation(otherInstallationId, INSTALLATION_NAME, TixCoreUtils.ENCODER.apply(otherKeyPair.getPublic().getEncoded())))),
+						MediaType.APPLICATION_JSON));
+
+		packageValidator.prefetch(Arrays.asList(USER_ID)).join();
+		assertThat(packageValidator.validUserAndInstallation(packet)).isTrue();
+		assertThat(packageValidator.validUserAndInstallation(otherPacket)).isTrue();
+		server.verify();
+	}
 }
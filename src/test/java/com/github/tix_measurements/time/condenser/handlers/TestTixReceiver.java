@@ -4,12 +4,17 @@ import com.github.tix_measurements.time.condenser.PacketGenerator;
 import com.github.tix_measurements.time.condenser.sender.RabbitSubmitter;
 import com.github.tix_measurements.time.condenser.store.MeasurementStore;
 import com.github.tix_measurements.time.core.data.TixDataPacket;
+import com.github.tix_measurements.time.core.util.TixCoreUtils;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
 import static org.mockito.Mockito.*;
 
 public class TestTixReceiver {
@@ -18,53 +23,119 @@ public class TestTixReceiver {
 
 	private MeasurementStore measurementStore;
 	private TixPacketValidator packetValidator;
+	private TixSignatureVerifier signatureVerifier;
 	private RabbitSubmitter submitter;
+	private BacklogDrain backlogDrain;
 	private TixReceiver receiver;
 	
 	@Before
 	public void setup() throws InterruptedException {
 		packetValidator = mock(TixPacketValidator.class);
 		measurementStore = mock(MeasurementStore.class);
+		signatureVerifier = new TixSignatureVerifier();
 		submitter = mock(RabbitSubmitter.class);
-		receiver = new TixReceiver(measurementStore, packetValidator, submitter);
+		backlogDrain = mock(BacklogDrain.class);
+		receiver = new TixReceiver(measurementStore, packetValidator, signatureVerifier, submitter, backlogDrain);
 	}
 
 	@Test(expected = IllegalArgumentException.class)
 	public void testConstructorWithOnlyValidSubmitter() {
-		new TixReceiver(null, null, submitter);
+		new TixReceiver(null, null, signatureVerifier, submitter, backlogDrain);
 	}
 
 	@Test(expected = IllegalArgumentException.class)
 	public void testConstructorWithOnlyValidPacketValidator() {
-		new TixReceiver(null, packetValidator, null);
+		new TixReceiver(null, packetValidator, signatureVerifier, null, backlogDrain);
 	}
 
 	@Test(expected = IllegalArgumentException.class)
 	public void testConstructorWithOnlyValidMeasurementStore() {
-		new TixReceiver(measurementStore, null, null);
+		new TixReceiver(measurementStore, null, signatureVerifier, null, backlogDrain);
 	}
 
 	@Test
 	public void testValidPacket() throws IOException {
 		TixDataPacket packet = PacketGenerator.createNewPacket(USER_ID, INSTALLATION_ID);
-		when(packetValidator.validUserAndInstallation(packet)).thenReturn(true);
+		when(packetValidator.validUserAndInstallationAsync(packet)).thenReturn(CompletableFuture.completedFuture(true));
 		when(measurementStore.storePacket(packet)).thenReturn(Optional.empty());
 		
 		receiver.receiveMessage(packet);
 		
-		verify(packetValidator, times(1)).validUserAndInstallation(packet);
+		verify(packetValidator, times(1)).validUserAndInstallationAsync(packet);
 		verify(measurementStore, times(1)).storePacket(packet);
 	}
 
+	@Test
+	public void testValidBatch() throws IOException {
+		TixDataPacket first = PacketGenerator.createNewPacket(USER_ID, INSTALLATION_ID);
+		TixDataPacket second = PacketGenerator.defaults()
+				.withUserId(USER_ID)
+				.withInstallationId(INSTALLATION_ID)
+				.withInitialTimestamp(PacketGenerator.DEFAULT_FIRST_UNIX_TIMESTAMP + 60)
+				.build();
+		TixDataPacket other = PacketGenerator.createNewPacket(USER_ID, INSTALLATION_ID + 1);
+		TixDataPacket invalid = PacketGenerator.createNewPacket(USER_ID + 1, INSTALLATION_ID);
+		when(packetValidator.validUserAndInstallationAsync(any())).thenReturn(CompletableFuture.completedFuture(true));
+		when(packetValidator.validUserAndInstallationAsync(invalid)).thenReturn(CompletableFuture.completedFuture(false));
+		when(measurementStore.storePackets(any())).thenReturn(Optional.empty());
+
+		receiver.receiveBatch(Arrays.asList(first, other, invalid, second));
+
+		verify(measurementStore, times(1)).storePackets(Arrays.asList(first, second));
+		verify(measurementStore, times(1)).storePackets(Arrays.asList(other));
+		verify(measurementStore, times(2)).storePackets(any());
+	}
+
+	@Test(expected = IOException.class)
+	public void testBatchStorageFailure() throws IOException {
+		TixDataPacket packet = PacketGenerator.createNewPacket(USER_ID, INSTALLATION_ID);
+		when(packetValidator.validUserAndInstallationAsync(packet)).thenReturn(CompletableFuture.completedFuture(true));
+		when(measurementStore.storePackets(any())).thenThrow(new IOException("disk full"));
+
+		receiver.receiveBatch(Arrays.asList(packet));
+	}
+
+	@Test
+	public void testBatchStorageFailureKeepsOtherInstallations() throws IOException {
+		TixDataPacket stored = PacketGenerator.createNewPacket(USER_ID, INSTALLATION_ID);
+		TixDataPacket failing = PacketGenerator.createNewPacket(USER_ID, INSTALLATION_ID + 1);
+		when(packetValidator.validUserAndInstallationAsync(any())).thenReturn(CompletableFuture.completedFuture(true));
+		when(measurementStore.storePackets(Arrays.asList(stored))).thenReturn(Optional.empty());
+		when(measurementStore.storePackets(Arrays.asList(failing))).thenThrow(new IOException("disk full"));
+
+		try {
+			receiver.receiveBatch(Arrays.asList(failing, stored));
+			fail("storage failure was not reported");
+		} catch (BatchStoreException e) {
+			assertThat(e.failedCount()).isEqualTo(1);
+			assertThat(e.failed(failing)).isTrue();
+			assertThat(e.failed(stored)).isFalse();
+		}
+		verify(measurementStore, times(1)).storePackets(Arrays.asList(stored));
+	}
+
 	@Test
 	public void testInvalidPacket() throws Exception {
 		long otherUserId = USER_ID + 1L;
 		TixDataPacket packet = PacketGenerator.createNewPacket(otherUserId, INSTALLATION_ID);
-		when(packetValidator.validUserAndInstallation(packet)).thenReturn(false);
+		when(packetValidator.validUserAndInstallationAsync(packet)).thenReturn(CompletableFuture.completedFuture(false));
 		
 		receiver.receiveMessage(packet);
 		
-		verify(packetValidator, times(1)).validUserAndInstallation(packet);
+		verify(packetValidator, times(1)).validUserAndInstallationAsync(packet);
+		verify(measurementStore, never()).storePacket(packet);
+	}
+
+	@Test
+	public void testInvalidSignature() throws Exception {
+		TixDataPacket signedPacket = PacketGenerator.createNewPacket(USER_ID, INSTALLATION_ID);
+		TixDataPacket packet = new TixDataPacket(signedPacket.getFrom(), signedPacket.getTo(), signedPacket.getInitialTimestamp(),
+				USER_ID, INSTALLATION_ID, TixCoreUtils.NEW_KEY_PAIR.get().getPublic().getEncoded(),
+				signedPacket.getMessage(), signedPacket.getSignature());
+
+		receiver.receiveMessage(packet);
+
+		verify(packetValidator, never()).validUserAndInstallationAsync(packet);
 		verify(measurementStore, never()).storePacket(packet);
 	}
 }
@@ -0,0 +1,98 @@
+package com.github.tix_measurements.time.condenser.handlers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+import java.security.KeyPair;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import com.github.tix_measurements.time.condenser.PacketGenerator;
+import com.github.tix_measurements.time.core.data.TixDataPacket;
+import com.github.tix_measurements.time.core.util.TixCoreUtils;
+
+public class TestTixSignatureVerifier {
+	private static final long USER_ID = 1L;
+	private static final long INSTALLATION_ID = 1L;
+
+	private TixSignatureVerifier verifier;
+
+	@Before
+	public void setup() {
+		verifier = new TixSignatureVerifier();
+	}
+
+	@Test
+	public void testConstructor() {
+		assertThatExceptionOfType(IllegalArgumentException.class)
+				.isThrownBy(() -> new TixSignatureVerifier(-1, "RSA", "SHA256withRSA", 1L));
+		assertThatExceptionOfType(IllegalArgumentException.class)
+				.isThrownBy(() -> new TixSignatureVerifier(1, "NOT-AN-ALGORITHM", "SHA256withRSA", 1L));
+		assertThatExceptionOfType(IllegalArgumentException.class)
+				.isThrownBy(() -> new TixSignatureVerifier(1, "RSA", "NOT-AN-ALGORITHM", 1L));
+		assertThatExceptionOfType(IllegalArgumentException.class)
+				.isThrownBy(() -> new TixSignatureVerifier(1, "RSA", "SHA256withRSA", 0L));
+	}
+
+	@Test
+	public void testValidSignature() {
+		TixDataPacket packet = PacketGenerator.createNewPacket(USER_ID, INSTALLATION_ID);
+		assertThat(verifier.verifyAsync(packet).join()).isTrue();
+	}
+
+	@Test
+	public void testInvalidSignature() {
+		TixDataPacket signedPacket = PacketGenerator.createNewPacket(USER_ID, INSTALLATION_ID);
+		TixDataPacket packet = new TixDataPacket(signedPacket.getFrom(), signedPacket.getTo(), signedPacket.getInitialTimestamp(),
+				USER_ID, INSTALLATION_ID, TixCoreUtils.NEW_KEY_PAIR.get().getPublic().getEncoded(),
+				signedPacket.getMessage(), signedPacket.getSignature());
+		assertThat(verifier.verifyAsync(packet).join()).isFalse();
+		assertThat(metricsOf(verifier).get("signature.fallbacks")).isEqualTo(0L);
+	}
+
+	@Test
+	public void testFallbackWhenKeyDoesNotMatchAlgorithm() {
+		TixSignatureVerifier ecVerifier = new TixSignatureVerifier(1, "EC", "SHA256withECDSA", 1L);
+		KeyPair keyPair = TixCoreUtils.NEW_KEY_PAIR.get();
+		for (int i = 0; i < 2; i++) {
+			TixDataPacket packet = PacketGenerator.defaults()
+					.withInstallationId(INSTALLATION_ID)
+					.withKeyPair(keyPair)
+					.withInitialTimestamp(PacketGenerator.DEFAULT_FIRST_UNIX_TIMESTAMP + 60 * i)
+					.build();
+			assertThat(ecVerifier.verify(packet)).isTrue();
+		}
+
+		Map<String, Number> metrics = metricsOf(ecVerifier);
+		assertThat(metrics.get("signature.verified")).isEqualTo(2L);
+		assertThat(metrics.get("signature.fallbacks")).isEqualTo(2L);
+		ecVerifier.destroy();
+	}
+
+	@Test
+	public void testDecodedKeyIsCached() {
+		KeyPair keyPair = TixCoreUtils.NEW_KEY_PAIR.get();
+		for (int i = 0; i < 3; i++) {
+			TixDataPacket packet = PacketGenerator.defaults()
+					.withInstallationId(INSTALLATION_ID)
+					.withKeyPair(keyPair)
+					.withInitialTimestamp(PacketGenerator.DEFAULT_FIRST_UNIX_TIMESTAMP + 60 * i)
+					.build();
+			assertThat(verifier.verify(packet)).isTrue();
+		}
+
+		Map<String, Number> metrics = metricsOf(verifier);
+		assertThat(metrics.get("signature.verified")).isEqualTo(3L);
+		assertThat(metrics.get("signature.fallbacks")).isEqualTo(0L);
+		assertThat(metrics.get("signature.cached-keys")).isEqualTo(1L);
+	}
+
+	private static Map<String, Number> metricsOf(TixSignatureVerifier verifier) {
+		return verifier.metrics().stream()
+				.collect(Collectors.toMap(Metric::getName, Metric::getValue));
+	}
+}
@@ -0,0 +1,39 @@
+package com.github.tix_measurements.time.condenser.sender;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.github.tix_measurements.time.condenser.PacketGenerator;
+import com.github.tix_measurements.time.condenser.utils.jackson.TixPacketSerDe;
+import com.github.tix_measurements.time.core.data.TixDataPacket;
+
+public class TestPayloadCompression {
+	@Test
+	public void testRoundTrip() throws IOException {
+		List<TixDataPacket> packets = new ArrayList<>();
+		for (int i = 0; i < 20; ++i) {
+			packets.add(PacketGenerator.defaults().withInitialTimestamp(PacketGenerator.DEFAULT_FIRST_UNIX_TIMESTAMP + 60 * i).build());
+		}
+		byte[] payload = new TixPacketSerDe().serializeList(packets);
+
+		for (PayloadCompression compression: PayloadCompression.values()) {
+			byte[] compressed = compression.compress(payload);
+			assertThat(compression.decompress(compressed)).isEqualTo(payload);
+			assertThat(PayloadCompression.fromContentEncoding(compression.getContentEncoding().orElse(null))).isEqualTo(compression);
+		}
+		assertThat(PayloadCompression.GZIP.compress(payload).length).isLessThan(payload.length / 2);
+	}
+
+	@Test
+	public void testConfigNames() {
+		assertThat(PayloadCompression.fromConfigName("GZIP")).isEqualTo(PayloadCompression.GZIP);
+		assertThatExceptionOfType(IllegalArgumentException.class)
+				.isThrownBy(() -> PayloadCompression.fromConfigName("lz4"));
+	}
+}
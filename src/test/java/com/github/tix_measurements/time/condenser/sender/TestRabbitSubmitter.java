@@ -0,0 +1,227 @@
+package com.github.tix_measurements.time.condenser.sender;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.core.RabbitTemplate.ConfirmCallback;
+import org.springframework.amqp.rabbit.support.CorrelationData;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import com.github.tix_measurements.time.condenser.PacketGenerator;
+import com.github.tix_measurements.time.condenser.utils.jackson.TixPacketSerDe;
+
+public class TestRabbitSubmitter {
+	private static final String QUEUE_NAME = "condenser-processor-test";
+
+	private RabbitTemplate rabbitTemplate;
+	private RabbitSubmitter submitter;
+	private ConfirmCallback confirmCallback;
+	private SubmittablePacketSet packetSet;
+
+	@Before
+	public void setup() throws Exception {
+		rabbitTemplate = mock(RabbitTemplate.class);
+		submitter = new RabbitSubmitter(rabbitTemplate, QUEUE_NAME, 2, 200L, 2, PayloadCompression.GZIP.getConfigName(), 2);
+		ArgumentCaptor<ConfirmCallback> callback = ArgumentCaptor.forClass(ConfirmCallback.class);
+		verify(rabbitTemplate).setConfirmCallback(callback.capture());
+		confirmCallback = callback.getValue();
+		packetSet = mock(SubmittablePacketSet.class);
+		when(packetSet.getId()).thenReturn("1");
+		when(packetSet.packetsToSubmit()).thenReturn(Collections.singletonList(PacketGenerator.createNewPacket(1L, 1L)));
+		when(packetSet.onSubmitSuccess()).thenReturn(Optional.empty());
+	}
+
+	@After
+	public void teardown() {
+		submitter.destroy();
+	}
+
+	@Test
+	public void testDeletesOnlyOnceConfirmed() throws Exception {
+		CompletableFuture<Optional<SubmittablePacketSet>> result = submitter.submit(packetSet);
+
+		List<CorrelationData> published = published(1);
+		verify(packetSet, never()).onSubmitSuccess();
+		assertThat(result).isNotDone();
+
+		confirmCallback.confirm(published.get(0), true, null);
+		assertThat(result.get(1, TimeUnit.SECONDS)).isEmpty();
+		verify(packetSet, times(1)).onSubmitSuccess();
+	}
+
+	@Test
+	public void testStageMetrics() throws Exception {
+		CompletableFuture<Optional<SubmittablePacketSet>> result = submitter.submit(packetSet);
+		confirmCallback.confirm(published(1).get(0), true, null);
+		result.get(1, TimeUnit.SECONDS);
+
+		Map<String, Number> metrics = submitter.metrics().stream()
+				.collect(Collectors.toMap(Metric::getName, Metric::getValue));
+		assertThat(metrics).containsEntry("submitter.serialize.latency.count", 1L)
+				.containsEntry("submitter.publish.latency.count", 1L)
+				.containsEntry("submitter.confirm.latency.count", 1L)
+				.containsEntry("submitter.data-age.count", 1L);
+		long age = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(PacketGenerator.DEFAULT_FIRST_UNIX_TIMESTAMP);
+		assertThat(metrics.get("submitter.data-age.max-millis").doubleValue()).isBetween(age - 60000.0, age + 60000.0);
+	}
+
+	@Test
+	public void testCompressedPayload() throws Exception {
+		submitter.submit(packetSet);
+
+		ArgumentCaptor<Message> message = ArgumentCaptor.forClass(Message.class);
+		verify(rabbitTemplate).convertAndSend(eq(""), eq(QUEUE_NAME), message.capture(), any(CorrelationData.class));
+		assertThat(message.getValue().getMessageProperties().getContentEncoding()).isEqualTo("gzip");
+		assertThat(PayloadCompression.GZIP.decompress(message.getValue().getBody()))
+				.isEqualTo(new TixPacketSerDe().serializeList(packetSet.packetsToSubmit()));
+		assertThat(submitter.metrics()).filteredOn(metric -> metric.getName().equals("submitter.payload.compression-ratio"))
+				.extracting(metric -> metric.getValue().doubleValue())
+				.allMatch(ratio -> ratio > 1.0);
+	}
+
+	@Test
+	public void testRetriesOnNack() throws Exception {
+		CompletableFuture<Optional<SubmittablePacketSet>> result = submitter.submit(packetSet);
+
+		confirmCallback.confirm(published(1).get(0), false, "queue full");
+		List<CorrelationData> published = published(2);
+		assertThat(published.get(1).getId()).isNotEqualTo(published.get(0).getId());
+
+		confirmCallback.confirm(published.get(1), true, null);
+		assertThat(result.get(1, TimeUnit.SECONDS)).isEmpty();
+		verify(packetSet, times(1)).onSubmitSuccess();
+	}
+
+	@Test
+	public void testFailsAfterTimeouts() throws Exception {
+		CompletableFuture<Optional<SubmittablePacketSet>> result = submitter.submit(packetSet);
+
+		assertThatExceptionOfType(ExecutionException.class)
+				.isThrownBy(() -> result.get(5, TimeUnit.SECONDS))
+				.withCauseInstanceOf(TimeoutException.class);
+		verify(rabbitTemplate, times(2)).convertAndSend(eq(""), eq(QUEUE_NAME), any(Message.class), any(CorrelationData.class));
+		verify(packetSet, times(1)).onSubmitFailure();
+		verify(packetSet, never()).onSubmitSuccess();
+	}
+
+	@Test
+	public void testPublishFailure() throws Exception {
+		doThrow(new AmqpException("connection lost")).when(rabbitTemplate)
+				.convertAndSend(anyString(), anyString(), any(Message.class), any(CorrelationData.class));
+
+		CompletableFuture<Optional<SubmittablePacketSet>> result = submitter.submit(packetSet);
+
+		assertThat(result).isCompletedExceptionally();
+		verify(packetSet, times(1)).onSubmitFailure();
+	}
+
+	@Test
+	public void testBoundsUnconfirmedMessages() throws Exception {
+		submitter.submit(packetSet);
+		submitter.submit(packetSet);
+		CompletableFuture<CompletableFuture<Optional<SubmittablePacketSet>>> third =
+				CompletableFuture.supplyAsync(() -> submitter.submit(packetSet));
+
+		List<CorrelationData> published = published(2);
+		assertThat(third).isNotDone();
+
+		confirmCallback.confirm(published.get(0), true, null);
+		third.get(1, TimeUnit.SECONDS);
+		published(3);
+	}
+
+	@Test
+	public void testSlowConfirmDoesNotStallOthers() throws Exception {
+		CountDownLatch slowStarted = new CountDownLatch(1);
+		CountDownLatch slowReleased = new CountDownLatch(1);
+		SubmittablePacketSet slowSet = mock(SubmittablePacketSet.class);
+		when(slowSet.getId()).thenReturn("2");
+		when(slowSet.packetsToSubmit()).thenReturn(Collections.singletonList(PacketGenerator.createNewPacket(2L, 2L)));
+		when(slowSet.onSubmitSuccess()).thenAnswer(invocation -> {
+			slowStarted.countDown();
+			slowReleased.await();
+			return Optional.empty();
+		});
+
+		CompletableFuture<Optional<SubmittablePacketSet>> slow = submitter.submit(slowSet);
+		CompletableFuture<Optional<SubmittablePacketSet>> result = submitter.submit(packetSet);
+		List<CorrelationData> published = published(2);
+
+		confirmCallback.confirm(published.get(0), true, null);
+		assertThat(slowStarted.await(1, TimeUnit.SECONDS)).isTrue();
+		confirmCallback.confirm(published.get(1), true, null);
+		assertThat(result.get(1, TimeUnit.SECONDS)).isEmpty();
+		assertThat(slow).isNotDone();
+
+		slowReleased.countDown();
+		assertThat(slow.get(1, TimeUnit.SECONDS)).isEmpty();
+	}
+
+	@Test
+	public void testFollowingSetPublishedOnceWindowFrees() throws Exception {
+		SubmittablePacketSet following = mock(SubmittablePacketSet.class);
+		when(following.getId()).thenReturn("1");
+		when(following.packetsToSubmit()).thenReturn(Collections.singletonList(PacketGenerator.createNewPacket(1L, 1L)));
+		when(following.following()).thenReturn(Optional.empty());
+		when(following.onSubmitSuccess()).thenReturn(Optional.empty());
+		when(packetSet.following()).thenReturn(Optional.empty());
+		when(packetSet.onSubmitSuccess()).thenReturn(Optional.of(following));
+		SubmittablePacketSet other = mock(SubmittablePacketSet.class);
+		when(other.getId()).thenReturn("2");
+		when(other.packetsToSubmit()).thenReturn(Collections.singletonList(PacketGenerator.createNewPacket(2L, 2L)));
+		when(other.onSubmitSuccess()).thenReturn(Optional.empty());
+
+		CompletableFuture<Void> sent = submitter.sendAsync(packetSet);
+		submitter.submit(other);
+		List<CorrelationData> published = published(2);
+		CompletableFuture<CompletableFuture<Optional<SubmittablePacketSet>>> blocked =
+				CompletableFuture.supplyAsync(() -> submitter.submit(other));
+
+		// Whichever of the following set and the blocked submit gets the freed room, the other one is published next
+		confirmCallback.confirm(published.get(0), true, null);
+		published = published(3);
+		confirmCallback.confirm(published.get(1), true, null);
+		published = published(4);
+		confirmCallback.confirm(published.get(2), true, null);
+		confirmCallback.confirm(published.get(3), true, null);
+
+		sent.get(1, TimeUnit.SECONDS);
+		blocked.get(1, TimeUnit.SECONDS).get(1, TimeUnit.SECONDS);
+		verify(following, times(1)).onSubmitSuccess();
+	}
+
+	private List<CorrelationData> published(int times) {
+		ArgumentCaptor<CorrelationData> correlations = ArgumentCaptor.forClass(CorrelationData.class);
+		verify(rabbitTemplate, timeout(1000).times(times))
+				.convertAndSend(eq(""), eq(QUEUE_NAME), any(Message.class), correlations.capture());
+		return correlations.getAllValues();
+	}
+}
@@ -3,46 +3,50 @@ package com.github.tix_measurements.time.condenser.store;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Collectors;
 
 import com.github.tix_measurements.time.condenser.utils.jackson.TixPacketSerDe;
 import com.github.tix_measurements.time.core.data.TixDataPacket;
 
 public class InMemoryInstallationMeasurements extends AbstractInstallationMeasurements {
+	private long userId;
 	private long installationId;
 	private List<TixDataPacket> packets;
 	
-	public InMemoryInstallationMeasurements(long installationId, List<TixDataPacket> packets) {
+	public InMemoryInstallationMeasurements(long userId, long installationId, List<TixDataPacket> packets) throws IOException {
+		this.userId = userId;
 		this.installationId = installationId;
-		this.packets = new ArrayList<>(packets);
+		this.packets = new ArrayList<>();
+		for (TixDataPacket packet: packets) {
+			append(packet);
+		}
 	}
 
 	@Override
-	public long getInstallationId() {
-		return installationId;
+	public long getUserId() {
+		return userId;
 	}
 
 	@Override
-	public List<Long> sampleStartTimes() {
-		return packets.stream()
-				.map(TixPacketSerDe::getFirstReportTimestamp)
-				.collect(Collectors.toList());
+	public long getInstallationId() {
+		return installationId;
 	}
 
 	@Override
-	public void append(TixDataPacket packet) throws IOException {
+	protected boolean appendSample(long timestamp, TixDataPacket packet) throws IOException {
 		packets.add(packet);
+		return true;
 	}
 
 	@Override
-	public List<TixDataPacket> get(List<Long> range) throws IOException {
+	protected TixDataPacket readSample(long timestamp) throws IOException {
 		return packets.stream()
-				.filter(packet -> range.contains(TixPacketSerDe.getFirstReportTimestamp(packet)))
-				.collect(Collectors.toList());
+				.filter(packet -> TixPacketSerDe.getFirstReportTimestamp(packet) == timestamp)
+				.findFirst()
+				.orElseThrow(() -> new IOException("No sample at " + timestamp));
 	}
 
 	@Override
-	public void delete(List<Long> range) throws IOException {
-		packets.removeIf(packet -> range.contains(TixPacketSerDe.getFirstReportTimestamp(packet)));
+	protected void deleteSample(long timestamp) throws IOException {
+		packets.removeIf(packet -> TixPacketSerDe.getFirstReportTimestamp(packet) == timestamp);
 	}
 }
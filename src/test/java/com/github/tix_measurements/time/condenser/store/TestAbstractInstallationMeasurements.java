@@ -13,13 +13,14 @@ import com.github.tix_measurements.time.condenser.PacketGenerator;
 import com.github.tix_measurements.time.condenser.sender.SubmittablePacketSet;
 
 public class TestAbstractInstallationMeasurements {
+	private static final long USER_ID = 1L;
 	private static final long INSTALLATION_ID = 1L;
 	
 	private InstallationMeasurements measures;
 	
 	@Before
 	public void setup() throws IOException {
-		this.measures = new InMemoryInstallationMeasurements(INSTALLATION_ID, Arrays.asList());
+		this.measures = new InMemoryInstallationMeasurements(USER_ID, INSTALLATION_ID, Arrays.asList());
 	}
 
 	@Test
@@ -68,4 +69,45 @@ public class TestAbstractInstallationMeasurements {
 		packetSet.onSubmitSuccess();
 		assertThat(measures.sampleStartTimes().size()).isEqualTo(11);
 	}
+
+	@Test
+	public void testFollowingSetsConfirmedOutOfOrder() throws IOException {
+		for (int i = 0; i < 30; ++i) {
+			long timestamp = PacketGenerator.DEFAULT_FIRST_UNIX_TIMESTAMP + 60 * i;
+			measures.append(PacketGenerator.defaults().withInitialTimestamp(timestamp).build());
+		}
+
+		SubmittablePacketSet first = measures.checkAndExtract().get();
+		SubmittablePacketSet second = first.following().get();
+		assertThat(first.packetsToSubmit().size()).isEqualTo(19);
+		assertThat(second.packetsToSubmit()).hasSize(19).startsWith(first.packetsToSubmit().get(9));
+		assertThat(second.following()).isEmpty();
+
+		assertThat(second.onSubmitSuccess()).isEmpty();
+		assertThat(measures.sampleStartTimes().size()).isEqualTo(30);
+
+		first.onSubmitSuccess();
+		assertThat(measures.sampleStartTimes().size()).isEqualTo(30 - 9 - 9);
+	}
+
+	@Test
+	public void testFollowingSetDiscardedWhenEarlierOneFails() throws IOException {
+		for (int i = 0; i < 30; ++i) {
+			long timestamp = PacketGenerator.DEFAULT_FIRST_UNIX_TIMESTAMP + 60 * i;
+			measures.append(PacketGenerator.defaults().withInitialTimestamp(timestamp).build());
+		}
+
+		SubmittablePacketSet first = measures.checkAndExtract().get();
+		SubmittablePacketSet second = first.following().get();
+
+		first.onSubmitFailure();
+		Optional<SubmittablePacketSet> retry = second.onSubmitSuccess();
+		assertThat(measures.sampleStartTimes().size()).isEqualTo(30);
+		assertThat(retry).isPresent();
+		assertThat(retry.get().packetsToSubmit()).isEqualTo(first.packetsToSubmit());
+
+		second.onSubmitFailure();
+		retry.get().onSubmitSuccess();
+		assertThat(measures.sampleStartTimes().size()).isEqualTo(30 - 9);
+	}
 }
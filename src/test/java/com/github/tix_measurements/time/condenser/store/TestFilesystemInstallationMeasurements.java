@@ -55,11 +55,11 @@ public class TestFilesystemInstallationMeasurements {
 		measurements.append(packet);
 
 		assertThat(measurements.sampleStartTimes().contains(PacketGenerator.DEFAULT_FIRST_UNIX_TIMESTAMP));
-		assertThat(Files.walk(reportsPath).count()).isEqualTo(count + 3);
+		assertThat(Files.walk(reportsPath).count()).isEqualTo(count + 4);
 		
 		try (Stream<Path> paths = Files.walk(reportsPath)) {
 			paths.forEach(file -> {
-				if (file.toFile().isDirectory()) {
+				if (file.toFile().isDirectory() || file.getFileName().toString().equals(SampleIndexJournal.FILE_NAME)) {
 					return;
 				}
 				
@@ -85,4 +85,86 @@ public class TestFilesystemInstallationMeasurements {
 			});
 		}
 	}
+
+	@Test
+	public void testBinaryFormatReadsJsonReports() throws IOException {
+		FilesystemInstallationMeasurements jsonMeasurements = new FilesystemInstallationMeasurements(reportsPath, USER_ID, INSTALLATION_ID, ReportFormat.JSON);
+		jsonMeasurements.append(packet);
+		TixDataPacket nextPacket = PacketGenerator.defaults().withInitialTimestamp(PacketGenerator.DEFAULT_FIRST_UNIX_TIMESTAMP + 60).build();
+
+		FilesystemInstallationMeasurements measurements = new FilesystemInstallationMeasurements(reportsPath, USER_ID, INSTALLATION_ID, ReportFormat.BINARY);
+		measurements.append(nextPacket);
+
+		long first = TixPacketSerDe.getFirstReportTimestamp(packet);
+		long next = TixPacketSerDe.getFirstReportTimestamp(nextPacket);
+		Path reportDirectory = reportsPath.resolve(Long.toString(USER_ID)).resolve(Long.toString(INSTALLATION_ID));
+		assertThat(Files.exists(reportDirectory.resolve(format(FilesystemInstallationMeasurements.REPORTS_FILE_NAME_FORMAT_TEMPLATE,
+				next, ReportFormat.BINARY.getFileExtension())))).isTrue();
+		assertThat(measurements.get(first, next)).containsExactly(packet, nextPacket);
+
+		measurements.delete(first, next);
+		try (Stream<Path> paths = Files.list(reportDirectory)) {
+			assertThat(paths.map(Path::getFileName).map(Path::toString)).containsExactly(SampleIndexJournal.FILE_NAME);
+		}
+	}
+
+	@Test
+	public void testReopenFromJournal() throws IOException {
+		FilesystemInstallationMeasurements measurements = new FilesystemInstallationMeasurements(reportsPath, USER_ID, INSTALLATION_ID);
+		for (int i = 0; i < 3; ++i) {
+			measurements.append(PacketGenerator.defaults().withInitialTimestamp(PacketGenerator.DEFAULT_FIRST_UNIX_TIMESTAMP + 60 * i).build());
+		}
+		long first = measurements.sampleStartTimes().timestamp(0);
+		measurements.delete(first, first);
+
+		Path reportDirectory = reportsPath.resolve(Long.toString(USER_ID)).resolve(Long.toString(INSTALLATION_ID));
+		Path lastReport = reportDirectory.resolve(format(FilesystemInstallationMeasurements.REPORTS_FILE_NAME_TEMPLATE, measurements.sampleStartTimes().timestamp(1)));
+		Files.write(lastReport, "not a report".getBytes());
+		measurements.close();
+
+		FilesystemInstallationMeasurements reopened = new FilesystemInstallationMeasurements(reportsPath, USER_ID, INSTALLATION_ID);
+		assertThat(reopened.sampleStartTimes().size()).isEqualTo(2);
+		assertThat(reopened.sampleStartTimes().contains(first)).isFalse();
+		assertThat(reopened.sampleStartTimes().cumulativeObservations(1)).isEqualTo(measurements.sampleStartTimes().cumulativeObservations(1));
+	}
+
+	@Test
+	public void testJournalCheckedAgainstDirectory() throws IOException {
+		FilesystemInstallationMeasurements measurements = new FilesystemInstallationMeasurements(reportsPath, USER_ID, INSTALLATION_ID);
+		measurements.append(packet);
+		TixDataPacket deleted = PacketGenerator.defaults().withInitialTimestamp(PacketGenerator.DEFAULT_FIRST_UNIX_TIMESTAMP + 120).build();
+		measurements.append(deleted);
+
+		Path reportDirectory = reportsPath.resolve(Long.toString(USER_ID)).resolve(Long.toString(INSTALLATION_ID));
+		TixDataPacket unjournaled = PacketGenerator.defaults().withInitialTimestamp(PacketGenerator.DEFAULT_FIRST_UNIX_TIMESTAMP + 60).build();
+		Files.write(reportDirectory.resolve(format(FilesystemInstallationMeasurements.REPORTS_FILE_NAME_TEMPLATE, TixPacketSerDe.getFirstReportTimestamp(unjournaled))),
+				serDe.serialize(unjournaled));
+		Files.delete(reportDirectory.resolve(format(FilesystemInstallationMeasurements.REPORTS_FILE_NAME_TEMPLATE, TixPacketSerDe.getFirstReportTimestamp(deleted))));
+
+		FilesystemInstallationMeasurements reopened = new FilesystemInstallationMeasurements(reportsPath, USER_ID, INSTALLATION_ID);
+		assertThat(reopened.sampleStartTimes().size()).isEqualTo(2);
+		assertThat(reopened.sampleStartTimes().contains(TixPacketSerDe.getFirstReportTimestamp(unjournaled))).isTrue();
+		assertThat(reopened.sampleStartTimes().contains(TixPacketSerDe.getFirstReportTimestamp(deleted))).isFalse();
+		assertThat(new FilesystemInstallationMeasurements(reportsPath, USER_ID, INSTALLATION_ID).sampleStartTimes().size()).isEqualTo(2);
+	}
+
+	@Test
+	public void testCleanJournalTrusted() throws IOException {
+		FilesystemInstallationMeasurements measurements = new FilesystemInstallationMeasurements(reportsPath, USER_ID, INSTALLATION_ID);
+		measurements.append(packet);
+		measurements.close();
+
+		Path reportDirectory = reportsPath.resolve(Long.toString(USER_ID)).resolve(Long.toString(INSTALLATION_ID));
+		TixDataPacket unjournaled = PacketGenerator.defaults().withInitialTimestamp(PacketGenerator.DEFAULT_FIRST_UNIX_TIMESTAMP + 60).build();
+		Files.write(reportDirectory.resolve(format(FilesystemInstallationMeasurements.REPORTS_FILE_NAME_TEMPLATE, TixPacketSerDe.getFirstReportTimestamp(unjournaled))),
+				serDe.serialize(unjournaled));
+
+		FilesystemInstallationMeasurements reopened = new FilesystemInstallationMeasurements(reportsPath, USER_ID, INSTALLATION_ID);
+		assertThat(reopened.sampleStartTimes().size()).isEqualTo(1);
+		reopened.append(PacketGenerator.defaults().withInitialTimestamp(PacketGenerator.DEFAULT_FIRST_UNIX_TIMESTAMP + 120).build());
+
+		FilesystemInstallationMeasurements afterCrash = new FilesystemInstallationMeasurements(reportsPath, USER_ID, INSTALLATION_ID);
+		assertThat(afterCrash.sampleStartTimes().size()).isEqualTo(3);
+		assertThat(afterCrash.sampleStartTimes().contains(TixPacketSerDe.getFirstReportTimestamp(unjournaled))).isTrue();
+	}
 }
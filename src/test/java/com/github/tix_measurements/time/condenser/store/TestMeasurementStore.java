@@ -1,9 +1,11 @@
 package com.github.tix_measurements.time.condenser.store;
 
 import com.github.tix_measurements.time.condenser.PacketGenerator;
+import com.github.tix_measurements.time.condenser.sender.SubmittablePacketSet;
 import com.github.tix_measurements.time.condenser.utils.jackson.TixPacketSerDe;
 import com.github.tix_measurements.time.core.data.TixDataPacket;
 import org.junit.After;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -12,8 +14,20 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
 
 public class TestMeasurementStore {
@@ -50,4 +64,143 @@ public class TestMeasurementStore {
 		assertThatExceptionOfType(IllegalArgumentException.class)
 				.isThrownBy(() -> new MeasurementStore(""));
 	}
+
+	@Test
+	public void testHandlesEvictedAndReloaded() throws IOException {
+		Path reportsPath = Files.createTempDirectory("tix-test-temp");
+		try {
+			MeasurementStore store = new MeasurementStore(reportsPath.toString(), ReportsBackend.FILESYSTEM.getConfigName(),
+					ReportFormat.BINARY.getConfigName(), SegmentLogInstallationMeasurements.DEFAULT_SEGMENT_MAX_BYTES, 1L, 60,
+					AbstractInstallationMeasurements.DEFAULT_MAX_WINDOWS_IN_FLIGHT);
+			assertThat(store.userIds()).isEmpty();
+
+			store.storePacket(PacketGenerator.createNewPacket(USER_ID, INSTALLATION_ID));
+			store.storePacket(PacketGenerator.createNewPacket(USER_ID + 1, INSTALLATION_ID + 1));
+			store.storePacket(PacketGenerator.defaults()
+					.withUserId(USER_ID)
+					.withInstallationId(INSTALLATION_ID)
+					.withInitialTimestamp(PacketGenerator.DEFAULT_FIRST_UNIX_TIMESTAMP + 60)
+					.build());
+
+			assertThat(store.userIds()).containsOnly(USER_ID, USER_ID + 1);
+			assertThat(store.packetsToSend()).isEmpty();
+			assertThat(metric(store, "reports.handles.size")).isEqualTo(1L);
+			assertThat(metric(store, "reports.handles.evictions")).isGreaterThan(0L);
+			try (Stream<Path> reports = Files.list(reportsPath.resolve(Long.toString(USER_ID)).resolve(Long.toString(INSTALLATION_ID)))) {
+				assertThat(reports.filter(path -> FilesystemInstallationMeasurements.REPORTS_TIMESTAMP_CAPTURE.matcher(path.getFileName().toString()).matches()).count())
+						.isEqualTo(2);
+			}
+		} finally {
+			try (Stream<Path> files = Files.walk(reportsPath)) {
+				files.sorted(Comparator.reverseOrder())
+					.map(Path::toFile)
+					.forEach(File::delete);
+			}
+		}
+	}
+
+	@Test
+	public void testEvictedHandlesClosed() throws IOException {
+		Path processFiles = Paths.get("/proc/self/fd");
+		Assume.assumeTrue(Files.isDirectory(processFiles));
+		Path reportsPath = Files.createTempDirectory("tix-test-temp");
+		try {
+			MeasurementStore store = new MeasurementStore(reportsPath.toString(), ReportsBackend.SEGMENT_LOG.getConfigName(),
+					ReportFormat.BINARY.getConfigName(), SegmentLogInstallationMeasurements.DEFAULT_SEGMENT_MAX_BYTES, 1L, 60,
+					AbstractInstallationMeasurements.DEFAULT_MAX_WINDOWS_IN_FLIGHT);
+			Path firstInstallation = reportsPath.resolve(Long.toString(USER_ID)).resolve(Long.toString(INSTALLATION_ID));
+
+			store.storePacket(PacketGenerator.createNewPacket(USER_ID, INSTALLATION_ID));
+			assertThat(openFilesUnder(processFiles, firstInstallation)).isEqualTo(1);
+			store.storePacket(PacketGenerator.createNewPacket(USER_ID + 1, INSTALLATION_ID + 1));
+			assertThat(openFilesUnder(processFiles, firstInstallation)).isEqualTo(0);
+
+			store.storePacket(PacketGenerator.defaults()
+					.withUserId(USER_ID)
+					.withInstallationId(INSTALLATION_ID)
+					.withInitialTimestamp(PacketGenerator.DEFAULT_FIRST_UNIX_TIMESTAMP + 60)
+					.build());
+			assertThat(metric(store, "reports.samples.pending")).isEqualTo(3L);
+			store.destroy();
+			assertThat(openFilesUnder(processFiles, reportsPath)).isEqualTo(0);
+		} finally {
+			try (Stream<Path> files = Files.walk(reportsPath)) {
+				files.sorted(Comparator.reverseOrder())
+					.map(Path::toFile)
+					.forEach(File::delete);
+			}
+		}
+	}
+
+	@Test
+	public void testConcurrentInstallations() throws Exception {
+		final int installations = 4;
+		final int packetsPerInstallation = 25;
+		Path reportsPath = Files.createTempDirectory("tix-test-temp");
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			MeasurementStore store = new MeasurementStore(reportsPath.toString(), ReportsBackend.FILESYSTEM.getConfigName(),
+					ReportFormat.BINARY.getConfigName(), SegmentLogInstallationMeasurements.DEFAULT_SEGMENT_MAX_BYTES, 2L, 60,
+					AbstractInstallationMeasurements.DEFAULT_MAX_WINDOWS_IN_FLIGHT);
+			List<TixDataPacket> packets = new ArrayList<>();
+			for (int i = 0; i < packetsPerInstallation; i++) {
+				for (long installationId = 1; installationId <= installations; installationId++) {
+					packets.add(PacketGenerator.defaults()
+							.withUserId(USER_ID)
+							.withInstallationId(installationId)
+							.withInitialTimestamp(PacketGenerator.DEFAULT_FIRST_UNIX_TIMESTAMP + 60 * i)
+							.build());
+				}
+			}
+			Collections.shuffle(packets);
+			Map<Long, AtomicInteger> extracted = new ConcurrentHashMap<>();
+			List<Future<Optional<SubmittablePacketSet>>> results = new ArrayList<>();
+			for (TixDataPacket packet: packets) {
+				extracted.putIfAbsent(packet.getInstallationId(), new AtomicInteger());
+				results.add(executor.submit(() -> {
+					Optional<SubmittablePacketSet> packetSet = store.storePacket(packet);
+					packetSet.ifPresent(set -> extracted.get(packet.getInstallationId()).incrementAndGet());
+					return packetSet;
+				}));
+			}
+			for (Future<Optional<SubmittablePacketSet>> result: results) {
+				result.get();
+			}
+
+			for (long installationId = 1; installationId <= installations; installationId++) {
+				assertThat(extracted.get(installationId).get()).isEqualTo(1);
+				try (Stream<Path> reports = Files.list(reportsPath.resolve(Long.toString(USER_ID)).resolve(Long.toString(installationId)))) {
+					assertThat(reports.filter(path -> FilesystemInstallationMeasurements.REPORTS_TIMESTAMP_CAPTURE.matcher(path.getFileName().toString()).matches()).count())
+							.isEqualTo(packetsPerInstallation);
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+			try (Stream<Path> files = Files.walk(reportsPath)) {
+				files.sorted(Comparator.reverseOrder())
+					.map(Path::toFile)
+					.forEach(File::delete);
+			}
+		}
+	}
+
+	private static long openFilesUnder(Path processFiles, Path directory) throws IOException {
+		try (Stream<Path> descriptors = Files.list(processFiles)) {
+			return descriptors.filter(descriptor -> {
+				try {
+					return Files.readSymbolicLink(descriptor).startsWith(directory);
+				} catch (IOException e) {
+					return false;
+				}
+			}).count();
+		}
+	}
+
+	private static long metric(MeasurementStore store, String name) {
+		return store.metrics().stream()
+				.filter(metric -> metric.getName().equals(name))
+				.findFirst()
+				.map(metric -> metric.getValue().longValue())
+				.orElseThrow(() -> new AssertionError(name));
+	}
 }
@@ -0,0 +1,81 @@
+package com.github.tix_measurements.time.condenser.store;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestSampleIndex {
+	private static final long MAX_GAP = 100L;
+
+	private SampleIndex index;
+	private InetAddress address;
+	private InetAddress otherAddress;
+
+	@Before
+	public void setup() throws UnknownHostException {
+		index = new SampleIndex(MAX_GAP);
+		address = InetAddress.getByName("192.168.1.1");
+		otherAddress = InetAddress.getByName("192.168.1.2");
+	}
+
+	@Test
+	public void testSortedInsert() {
+		assertThat(index.add(30L, 3, address, 30L)).isTrue();
+		assertThat(index.add(10L, 1, address, 10L)).isTrue();
+		assertThat(index.add(20L, 2, address, 20L)).isTrue();
+		assertThat(index.add(20L, 2, address, 20L)).isFalse();
+
+		assertThat(index.size()).isEqualTo(3);
+		assertThat(index.timestamp(0)).isEqualTo(10L);
+		assertThat(index.timestamp(2)).isEqualTo(30L);
+		assertThat(index.cumulativeObservations(0)).isEqualTo(1L);
+		assertThat(index.cumulativeObservations(1)).isEqualTo(3L);
+		assertThat(index.cumulativeObservations(2)).isEqualTo(6L);
+		assertThat(index.contains(20L)).isTrue();
+		assertThat(index.contains(25L)).isFalse();
+		assertThat(index.ceilingIndex(25L)).isEqualTo(2);
+	}
+
+	@Test
+	public void testFirstIndexReaching() {
+		for (int i = 0; i < 10; i++) {
+			index.add(i, 10, address, i);
+		}
+		assertThat(index.firstIndexReaching(1L)).isEqualTo(0);
+		assertThat(index.firstIndexReaching(30L)).isEqualTo(2);
+		assertThat(index.firstIndexReaching(31L)).isEqualTo(3);
+		assertThat(index.firstIndexReaching(101L)).isEqualTo(-1);
+	}
+
+	@Test
+	public void testRemoveRange() {
+		for (int i = 0; i < 10; i++) {
+			index.add(i, 10, address, i);
+		}
+		index.removeRange(0, 4);
+
+		assertThat(index.size()).isEqualTo(6);
+		assertThat(index.timestamp(0)).isEqualTo(4L);
+		assertThat(index.cumulativeObservations(0)).isEqualTo(10L);
+		assertThat(index.cumulativeObservations(5)).isEqualTo(60L);
+	}
+
+	@Test
+	public void testAddressChangeAndGap() {
+		index.add(1L, 1, address, 0L);
+		index.add(2L, 1, address, MAX_GAP);
+		index.add(3L, 1, address, 3 * MAX_GAP);
+		index.add(4L, 1, otherAddress, 3 * MAX_GAP + 1);
+
+		assertThat(index.firstGap()).isEqualTo(1);
+		assertThat(index.firstAddressChange()).isEqualTo(3);
+
+		index.removeRange(0, 2);
+		assertThat(index.firstGap()).isEqualTo(-1);
+		assertThat(index.firstAddressChange()).isEqualTo(1);
+	}
+}
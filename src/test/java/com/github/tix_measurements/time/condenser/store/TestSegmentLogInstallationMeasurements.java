@@ -0,0 +1,175 @@
+package com.github.tix_measurements.time.condenser.store;
+
+import static java.lang.String.format;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.tix_measurements.time.condenser.PacketGenerator;
+import com.github.tix_measurements.time.condenser.utils.jackson.TixPacketSerDe;
+import com.github.tix_measurements.time.core.data.TixDataPacket;
+
+public class TestSegmentLogInstallationMeasurements {
+	private static final long USER_ID = 1L;
+	private static final long INSTALLATION_ID = 1L;
+	private static final long SEGMENT_MAX_BYTES = 16 * 1024L;
+
+	private Path reportsPath;
+	private List<TixDataPacket> packets;
+
+	@Before
+	public void setup() throws IOException {
+		reportsPath = Files.createTempDirectory("tix-test-temp");
+		packets = new ArrayList<>();
+		for (int i = 0; i < 20; ++i) {
+			long timestamp = PacketGenerator.DEFAULT_FIRST_UNIX_TIMESTAMP + 60 * i;
+			packets.add(PacketGenerator.defaults().withInitialTimestamp(timestamp).build());
+		}
+	}
+
+	@After
+	public void teardown() throws IOException {
+		if (reportsPath.toFile().exists()) {
+			try (Stream<Path> files = Files.walk(reportsPath)) {
+				files.sorted(Comparator.reverseOrder())
+					.map(Path::toFile)
+					.forEach(File::delete);
+			}
+		}
+	}
+
+	@Test
+	public void testAppendAndGet() throws IOException {
+		SegmentLogInstallationMeasurements measurements = newMeasurements();
+		for (TixDataPacket packet: packets) {
+			measurements.append(packet);
+		}
+		measurements.append(packets.get(0));
+
+		assertThat(measurements.sampleStartTimes().size()).isEqualTo(packets.size());
+		assertThat(measurements.get(first(0), first(packets.size() - 1))).isEqualTo(packets);
+		assertThat(segmentFiles().size()).isGreaterThan(1);
+	}
+
+	@Test
+	public void testReload() throws IOException {
+		SegmentLogInstallationMeasurements measurements = newMeasurements();
+		for (TixDataPacket packet: packets) {
+			measurements.append(packet);
+		}
+		measurements.delete(first(5), first(9));
+
+		SegmentLogInstallationMeasurements reloaded = newMeasurements();
+		assertThat(reloaded.sampleStartTimes().size()).isEqualTo(packets.size() - 5);
+		assertThat(reloaded.sampleStartTimes().contains(first(5))).isFalse();
+		assertThat(reloaded.get(first(10), first(10))).containsExactly(packets.get(10));
+	}
+
+	@Test
+	public void testReadsAfterClose() throws IOException {
+		SegmentLogInstallationMeasurements measurements = newMeasurements();
+		for (TixDataPacket packet: packets.subList(0, 10)) {
+			measurements.append(packet);
+		}
+		assertThat(measurements.get(first(0), first(9))).isEqualTo(packets.subList(0, 10));
+
+		measurements.close();
+		for (TixDataPacket packet: packets.subList(10, packets.size())) {
+			measurements.append(packet);
+		}
+		assertThat(measurements.get(first(0), first(packets.size() - 1))).isEqualTo(packets);
+		measurements.close();
+		assertThat(measurements.get(first(0), first(packets.size() - 1))).isEqualTo(packets);
+	}
+
+	@Test
+	public void testSyncedAcrossSegments() throws IOException {
+		SegmentLogInstallationMeasurements measurements = newMeasurements();
+		for (TixDataPacket packet: packets) {
+			measurements.append(packet);
+		}
+		measurements.sync();
+		measurements.delete(first(0), first(packets.size() - 2));
+		measurements.sync();
+
+		assertThat(newMeasurements().get(first(0), first(packets.size() - 1))).containsExactly(packets.get(packets.size() - 1));
+	}
+
+	@Test
+	public void testSegmentsReclaimed() throws IOException {
+		SegmentLogInstallationMeasurements measurements = newMeasurements();
+		for (TixDataPacket packet: packets) {
+			measurements.append(packet);
+		}
+		int segmentCount = segmentFiles().size();
+
+		measurements.delete(first(0), first(packets.size() - 2));
+		assertThat(segmentFiles().size()).isLessThan(segmentCount);
+
+		SegmentLogInstallationMeasurements reloaded = newMeasurements();
+		assertThat(reloaded.sampleStartTimes().size()).isEqualTo(1);
+		assertThat(reloaded.get(first(packets.size() - 1), first(packets.size() - 1))).containsExactly(packets.get(packets.size() - 1));
+	}
+
+	@Test
+	public void testTornRecordTruncated() throws IOException {
+		SegmentLogInstallationMeasurements measurements = newMeasurements();
+		measurements.append(packets.get(0));
+		measurements.append(packets.get(1));
+
+		Path segment = segmentFiles().get(0);
+		long size = Files.size(segment);
+		try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+			channel.truncate(size - 10);
+		}
+
+		SegmentLogInstallationMeasurements reloaded = newMeasurements();
+		assertThat(reloaded.sampleStartTimes().size()).isEqualTo(1);
+		assertThat(reloaded.get(first(0), first(0))).containsExactly(packets.get(0));
+		assertThat(Files.size(segment)).isLessThan(size - 10);
+	}
+
+	@Test
+	public void testReportFilesImported() throws IOException {
+		FilesystemInstallationMeasurements legacy = new FilesystemInstallationMeasurements(reportsPath, USER_ID, INSTALLATION_ID);
+		legacy.append(packets.get(0));
+		legacy.append(packets.get(1));
+
+		SegmentLogInstallationMeasurements measurements = newMeasurements();
+		assertThat(measurements.sampleStartTimes().size()).isEqualTo(2);
+		assertThat(measurements.get(first(0), first(1))).containsExactly(packets.get(0), packets.get(1));
+		assertThat(Files.exists(reportsPath.resolve(Long.toString(USER_ID)).resolve(Long.toString(INSTALLATION_ID))
+				.resolve(format(FilesystemInstallationMeasurements.REPORTS_FILE_NAME_TEMPLATE, first(0))))).isFalse();
+	}
+
+	private SegmentLogInstallationMeasurements newMeasurements() throws IOException {
+		return new SegmentLogInstallationMeasurements(reportsPath, USER_ID, INSTALLATION_ID, ReportFormat.BINARY, SEGMENT_MAX_BYTES);
+	}
+
+	private long first(int packet) {
+		return TixPacketSerDe.getFirstReportTimestamp(packets.get(packet));
+	}
+
+	private List<Path> segmentFiles() throws IOException {
+		try (Stream<Path> files = Files.walk(reportsPath)) {
+			return files
+					.filter(path -> SegmentLogInstallationMeasurements.SEGMENT_ID_CAPTURE.matcher(path.getFileName().toString()).matches())
+					.sorted()
+					.collect(Collectors.toList());
+		}
+	}
+}
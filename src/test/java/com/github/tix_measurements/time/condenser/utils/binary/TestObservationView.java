@@ -0,0 +1,72 @@
+package com.github.tix_measurements.time.condenser.utils.binary;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.tix_measurements.time.condenser.PacketGenerator;
+import com.github.tix_measurements.time.condenser.utils.jackson.TixPacketSerDe;
+import com.github.tix_measurements.time.core.data.TixDataPacket;
+
+public class TestObservationView {
+	private TixDataPacket packet;
+	private ObservationView view;
+
+	@Before
+	public void setup() {
+		packet = PacketGenerator.defaults().withReportsPerPacket(10).build();
+		view = new ObservationView().wrap(packet);
+	}
+
+	@Test
+	public void testReadsRecordsInPlace() {
+		ByteBuffer message = ByteBuffer.wrap(packet.getMessage());
+
+		assertThat(view.size()).isEqualTo(10);
+		for (int i = 0; i < view.size(); i++) {
+			int at = i * ObservationView.RECORD_BYTES;
+			view.moveTo(i);
+			assertThat(view.unixTimestamp()).isEqualTo(message.getLong(at));
+			assertThat(view.packetType()).isEqualTo(i % 2 == 0 ? 'S' : 'L');
+			assertThat(view.packetSize()).isEqualTo(message.getInt(at + 9));
+			assertThat(view.initialTimestamp()).isEqualTo(message.getLong(at + 13));
+			assertThat(view.receptionTimestamp()).isEqualTo(message.getLong(at + 21));
+			assertThat(view.sentTimestamp()).isEqualTo(message.getLong(at + 29));
+			assertThat(view.finalTimestamp()).isEqualTo(message.getLong(at + 37));
+		}
+		assertThatExceptionOfType(IndexOutOfBoundsException.class)
+				.isThrownBy(() -> view.moveTo(10));
+	}
+
+	@Test
+	public void testUnixTimestamps() {
+		long[] timestamps = view.unixTimestamps();
+
+		assertThat(timestamps).hasSize(10);
+		for (int i = 0; i < timestamps.length; i++) {
+			assertThat(timestamps[i]).isEqualTo(PacketGenerator.DEFAULT_FIRST_UNIX_TIMESTAMP + i);
+		}
+		assertThat(TixPacketSerDe.getReportTimestamps(packet)).isEqualTo(timestamps);
+		assertThat(TixPacketSerDe.getFirstReportTimestamp(packet)).isEqualTo(timestamps[0]);
+
+		long[] into = new long[12];
+		view.unixTimestamps(into, 2);
+		assertThat(Arrays.copyOfRange(into, 2, 12)).isEqualTo(timestamps);
+		assertThatExceptionOfType(IndexOutOfBoundsException.class)
+				.isThrownBy(() -> view.unixTimestamps(into, 3));
+	}
+
+	@Test
+	public void testPartialRecords() {
+		byte[] message = Arrays.copyOf(packet.getMessage(), 2 * ObservationView.RECORD_BYTES - 1);
+
+		assertThat(view.wrap(message).size()).isEqualTo(1);
+		assertThat(ObservationView.count(message)).isEqualTo(1);
+		assertThat(ObservationView.firstUnixTimestamp(new byte[0])).isEqualTo(0);
+	}
+}
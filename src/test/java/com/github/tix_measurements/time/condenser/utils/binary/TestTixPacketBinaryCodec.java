@@ -0,0 +1,61 @@
+package com.github.tix_measurements.time.condenser.utils.binary;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.tix_measurements.time.condenser.PacketGenerator;
+import com.github.tix_measurements.time.condenser.utils.jackson.TixPacketSerDe;
+import com.github.tix_measurements.time.core.data.TixDataPacket;
+
+public class TestTixPacketBinaryCodec {
+	private TixPacketBinaryCodec codec;
+	private TixDataPacket packet;
+
+	@Before
+	public void setup() {
+		codec = new TixPacketBinaryCodec();
+		packet = PacketGenerator.defaults().withFrom("2001:db8::1").build();
+		packet.setSentTimestamp(packet.getReceptionTimestamp() + 1);
+		packet.setFinalTimestamp(packet.getReceptionTimestamp() + 2);
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		TixDataPacket decoded = codec.deserialize(codec.serialize(packet));
+
+		assertThat(decoded).isEqualTo(packet);
+		assertThat(decoded.getReceptionTimestamp()).isEqualTo(packet.getReceptionTimestamp());
+		assertThat(decoded.getSentTimestamp()).isEqualTo(packet.getSentTimestamp());
+		assertThat(decoded.getFinalTimestamp()).isEqualTo(packet.getFinalTimestamp());
+		assertThat(decoded.getFrom()).isEqualTo(packet.getFrom());
+		assertThat(decoded.getTo()).isEqualTo(packet.getTo());
+	}
+
+	@Test
+	public void testSmallerThanJson() throws IOException {
+		assertThat(codec.serialize(packet).length).isLessThan(new TixPacketSerDe().serialize(packet).length);
+	}
+
+	@Test
+	public void testFormatDetection() throws IOException {
+		assertThat(TixPacketBinaryCodec.isBinary(ByteBuffer.wrap(codec.serialize(packet)))).isTrue();
+		assertThat(TixPacketBinaryCodec.isBinary(ByteBuffer.wrap(new TixPacketSerDe().serialize(packet)))).isFalse();
+	}
+
+	@Test
+	public void testCorruptRecord() throws IOException {
+		byte[] bytes = codec.serialize(packet);
+		assertThatExceptionOfType(IOException.class)
+				.isThrownBy(() -> codec.deserialize(Arrays.copyOf(bytes, bytes.length - 1)));
+		bytes[1] = TixPacketBinaryCodec.VERSION + 1;
+		assertThatExceptionOfType(IOException.class)
+				.isThrownBy(() -> codec.deserialize(bytes));
+	}
+}
@@ -0,0 +1,98 @@
+package com.github.tix_measurements.time.condenser.utils.jackson;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.tix_measurements.time.condenser.PacketGenerator;
+import com.github.tix_measurements.time.core.data.TixDataPacket;
+
+public class TestTixPacketSerDe {
+	/** Bean serialization through the mixin alone, as the serde did before the hand written codec */
+	private ObjectMapper reference;
+	private TixPacketSerDe serDe;
+	private TixDataPacket packet;
+
+	@Before
+	public void setup() {
+		reference = new ObjectMapper().addMixIn(TixDataPacket.class, TixDataPacketMixin.class);
+		serDe = TixPacketSerDe.shared();
+		packet = PacketGenerator.defaults().build();
+		packet.setSentTimestamp(packet.getReceptionTimestamp() + 1);
+		packet.setFinalTimestamp(packet.getReceptionTimestamp() + 2);
+	}
+
+	@Test
+	public void testSameWireFormat() throws IOException {
+		TixDataPacket ipv6Packet = PacketGenerator.defaults().withFrom("2001:db8::1").build();
+
+		assertThat(serDe.serialize(packet)).isEqualTo(reference.writeValueAsBytes(packet));
+		assertThat(serDe.serialize(ipv6Packet)).isEqualTo(reference.writeValueAsBytes(ipv6Packet));
+	}
+
+	@Test
+	public void testSameListWireFormat() throws IOException {
+		List<TixDataPacket> packets = new ArrayList<>();
+		for (int i = 0; i < 5; ++i) {
+			packets.add(PacketGenerator.defaults().withInitialTimestamp(PacketGenerator.DEFAULT_FIRST_UNIX_TIMESTAMP + 60 * i).build());
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		serDe.serializeList(packets, out);
+
+		assertThat(serDe.serializeList(packets)).isEqualTo(reference.writeValueAsBytes(packets));
+		assertThat(out.toByteArray()).isEqualTo(reference.writeValueAsBytes(packets));
+	}
+
+	@Test
+	public void testReadsReferenceFormat() throws IOException {
+		TixDataPacket decoded = serDe.deserialize(reference.writeValueAsBytes(packet));
+
+		assertThat(decoded).isEqualTo(packet);
+		assertThat(decoded.getFrom()).isEqualTo(packet.getFrom());
+		assertThat(decoded.getTo()).isEqualTo(packet.getTo());
+		assertThat(decoded.getReceptionTimestamp()).isEqualTo(packet.getReceptionTimestamp());
+		assertThat(decoded.getSentTimestamp()).isEqualTo(packet.getSentTimestamp());
+		assertThat(decoded.getFinalTimestamp()).isEqualTo(packet.getFinalTimestamp());
+	}
+
+	@Test
+	public void testReferenceReadsNewFormat() throws IOException {
+		List<TixDataPacket> packets = new ArrayList<>();
+		packets.add(packet);
+		List<TixDataPacket> decoded = reference.readValue(serDe.serializeList(packets), new TypeReference<List<TixDataPacket>>() {});
+
+		assertThat(decoded).containsExactly(packet);
+		assertThat(decoded.get(0).getFinalTimestamp()).isEqualTo(packet.getFinalTimestamp());
+	}
+
+	@Test
+	public void testNullFields() throws IOException {
+		TixDataPacket empty = new TixDataPacket(null, new InetSocketAddress("10.0.0.1", 4500), 1L, 2L, 3L, null, null, null);
+
+		byte[] bytes = serDe.serialize(empty);
+		assertThat(bytes).isEqualTo(reference.writeValueAsBytes(empty));
+		TixDataPacket decoded = serDe.deserialize(bytes);
+		assertThat(decoded.getFrom()).isNull();
+		assertThat(decoded.getPublicKey()).isNull();
+		assertThat(decoded.getMessage()).isNull();
+		assertThat(decoded.getTo()).isEqualTo(empty.getTo());
+		assertThat(decoded.getInstallationId()).isEqualTo(3L);
+	}
+
+	@Test
+	public void testUnknownFieldsAreSkipped() throws IOException {
+		String json = new String(reference.writeValueAsBytes(packet), "UTF-8")
+				.replaceFirst("\\{", "{\"extra\":{\"nested\":[1,2]},");
+
+		assertThat(serDe.deserialize(json.getBytes("UTF-8"))).isEqualTo(packet);
+	}
+}